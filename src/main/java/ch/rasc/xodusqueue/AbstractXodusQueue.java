@@ -0,0 +1,422 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.env.TransactionalComputable;
+
+/**
+ * Queue whose elements are the values of one store. The store key defines the order, the
+ * head of the queue is the first entry. Implements the read and remove operations on that
+ * store, subclasses decide under which key an element is inserted.
+ */
+abstract class AbstractXodusQueue<T> extends AbstractQueue<T> implements AutoCloseable {
+
+	final Environment env;
+
+	final String storeName;
+
+	/**
+	 * False when the environment is shared through a {@link XodusQueueRegistry}, which
+	 * then closes it.
+	 */
+	final boolean ownsEnvironment;
+
+	AbstractXodusQueue(Environment env, String storeName, boolean ownsEnvironment) {
+		this.env = env;
+		this.storeName = storeName;
+		this.ownsEnvironment = ownsEnvironment;
+	}
+
+	/**
+	 * Deserializes the element of a stored value.
+	 */
+	abstract T fromEntry(ByteIterable value);
+
+	/**
+	 * Called inside the transaction that changed the number of stored key and value bytes
+	 * by {@code delta}.
+	 */
+	void addStoredBytes(Transaction txn, long delta) {
+		// nothing to count by default
+	}
+
+	/**
+	 * Called for every value that {@link #poll()} or {@link #drainTo(Collection, int)}
+	 * hands out.
+	 */
+	void recordDequeue(ByteIterable value, long now) {
+		// nothing to record by default
+	}
+
+	/**
+	 * Called after a committed change that may have changed the head of the queue.
+	 */
+	void invalidateHead() {
+		// nothing cached by default
+	}
+
+	static long entryBytes(ByteIterable key, ByteIterable value) {
+		return key.getLength() + value.getLength();
+	}
+
+	Environment environment() {
+		return this.env;
+	}
+
+	String storeName() {
+		return this.storeName;
+	}
+
+	@Override
+	public T poll() {
+		T e = this.env.computeInExclusiveTransaction(pollComputable(true));
+		if (e != null) {
+			invalidateHead();
+		}
+		return e;
+	}
+
+	@Override
+	public T peek() {
+		return this.env.computeInReadonlyTransaction(pollComputable(false));
+	}
+
+	private TransactionalComputable<T> pollComputable(final boolean remove) {
+		return txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getNext()) {
+						ByteIterable value = cursor.getValue();
+						if (remove) {
+							addStoredBytes(txn, -entryBytes(cursor.getKey(), value));
+							recordDequeue(value, System.currentTimeMillis());
+							cursor.deleteCurrent();
+						}
+
+						return fromEntry(value);
+					}
+				}
+			}
+			return null;
+		};
+	}
+
+	/**
+	 * Removes up to {@code maxElements} elements from the head of the queue and adds them
+	 * to the collection.
+	 * @return the number of transferred elements
+	 */
+	protected int drainTo(Collection<? super T> c, int maxElements) {
+		Objects.requireNonNull(c);
+
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		if (maxElements <= 0) {
+			return 0;
+		}
+
+		List<T> drained = this.env.computeInExclusiveTransaction(txn -> {
+			List<T> elements = new ArrayList<>();
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				long now = System.currentTimeMillis();
+				long bytes = 0L;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (elements.size() < maxElements && cursor.getNext()) {
+						ByteIterable value = cursor.getValue();
+						recordDequeue(value, now);
+						elements.add(fromEntry(value));
+						bytes += entryBytes(cursor.getKey(), value);
+						cursor.deleteCurrent();
+					}
+				}
+				addStoredBytes(txn, -bytes);
+			}
+			return elements;
+		});
+
+		if (!drained.isEmpty()) {
+			c.addAll(drained);
+			invalidateHead();
+		}
+		return drained.size();
+	}
+
+	@Override
+	public int size() {
+		long size = sizeLong();
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+	}
+
+	public long sizeLong() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				return store.count(txn);
+			}
+			return 0L;
+		});
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return sizeLong() == 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				return containsInternal(o, txn, store);
+			}
+			return false;
+		});
+	}
+
+	private boolean containsInternal(Object o, Transaction txn, Store store) {
+		try (Cursor cursor = store.openCursor(txn)) {
+			while (cursor.getNext()) {
+				T e = fromEntry(cursor.getValue());
+				if (e.equals(o)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a snapshot iterator in dequeue order.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		List<T> snapshot = new ArrayList<>();
+		this.env.executeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						snapshot.add(fromEntry(cursor.getValue()));
+					}
+				}
+			}
+		});
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+
+	@Override
+	public Object[] toArray() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				Object[] r = new Object[(int) store.count(txn)];
+				int ix = 0;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						ByteIterable value = cursor.getValue();
+						T e = fromEntry(value);
+						r[ix++] = e;
+					}
+				}
+				return r;
+			}
+			return new Object[0];
+		});
+	}
+
+	@SuppressWarnings({ "unchecked", "hiding" })
+	@Override
+	public <T> T[] toArray(T[] a) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				int size = (int) store.count(txn);
+				T[] r = a.length >= size ? a
+						: (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
+				int ix = 0;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						ByteIterable value = cursor.getValue();
+						r[ix++] = (T) fromEntry(value);
+					}
+				}
+				if (r.length > ix) {
+					r[ix] = null;
+				}
+				return r;
+			}
+			if (a.length > 0) {
+				a[0] = null;
+			}
+			return a;
+		});
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		boolean removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						T e = fromEntry(cursor.getValue());
+						if (o.equals(e)) {
+							addStoredBytes(txn, -entryBytes(cursor.getKey(), cursor.getValue()));
+							cursor.deleteCurrent();
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		});
+
+		if (removed) {
+			invalidateHead();
+		}
+		return removed;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		Objects.requireNonNull(c);
+		if (c.isEmpty()) {
+			return true;
+		}
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				for (Object e : c) {
+					if (!containsInternal(e, txn, store)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		Objects.requireNonNull(c);
+
+		// Optimize for empty collection - no need to iterate
+		if (c.isEmpty()) {
+			return false;
+		}
+
+		boolean modified = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			boolean removed = false;
+			if (store != null) {
+				long bytes = 0L;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						T e = fromEntry(cursor.getValue());
+						if (c.contains(e)) {
+							bytes += entryBytes(cursor.getKey(), cursor.getValue());
+							cursor.deleteCurrent();
+							removed = true;
+						}
+					}
+				}
+				addStoredBytes(txn, -bytes);
+			}
+			return removed;
+		});
+
+		if (modified) {
+			invalidateHead();
+		}
+		return modified;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		Objects.requireNonNull(c);
+
+		// Optimize for empty collection - clear everything
+		if (c.isEmpty()) {
+			if (!isEmpty()) {
+				clear();
+				return true;
+			}
+			return false;
+		}
+
+		boolean modified = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			boolean removed = false;
+			if (store != null) {
+				long bytes = 0L;
+				try (Cursor cursor = store.openCursor(txn)) {
+					while (cursor.getNext()) {
+						T e = fromEntry(cursor.getValue());
+						if (!c.contains(e)) {
+							bytes += entryBytes(cursor.getKey(), cursor.getValue());
+							cursor.deleteCurrent();
+							removed = true;
+						}
+					}
+				}
+				addStoredBytes(txn, -bytes);
+			}
+			return removed;
+		});
+
+		if (modified) {
+			invalidateHead();
+		}
+		return modified;
+	}
+
+	@Override
+	public void clear() {
+		this.env.executeInExclusiveTransaction(txn -> this.env.truncateStore(this.storeName, txn));
+		invalidateHead();
+	}
+
+	@Override
+	public void close() {
+		if (this.env != null && this.ownsEnvironment) {
+			this.env.close();
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Paths;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+
+/**
+ * Queue that spreads its elements over several {@link XodusQueue} shards. Every shard has
+ * its own Xodus environment, so writers of different shards never wait for each other.
+ * Put the shard directories on different disks to spread the I/O as well.
+ * <p>
+ * Elements are FIFO ordered within a shard only. {@link #offer(Object)} distributes
+ * round-robin, {@link #offer(Object, Object)} picks the shard by the hash of a key, so
+ * all elements with the same key keep their order. {@link #poll()} looks at all shards,
+ * {@link #poll(int, boolean)} lets a consumer stick to one shard and optionally steal
+ * from the others when its own shard is empty.
+ */
+public class ShardedXodusQueue<T> extends AbstractQueue<T> implements AutoCloseable {
+
+	private final List<XodusQueue<T>> shards;
+
+	private final AtomicInteger nextOfferShard = new AtomicInteger();
+
+	private final AtomicInteger nextPollShard = new AtomicInteger();
+
+	public ShardedXodusQueue(String databaseDir, int shardCount, Class<T> entryClass) {
+		this(shardDirectories(databaseDir, shardCount), dir -> new XodusQueue<>(dir, entryClass));
+	}
+
+	public ShardedXodusQueue(String databaseDir, int shardCount, XodusQueueSerializer<T> serializer) {
+		this(shardDirectories(databaseDir, shardCount), dir -> new XodusQueue<>(dir, serializer));
+	}
+
+	/**
+	 * Creates one shard per directory.
+	 */
+	public ShardedXodusQueue(List<String> shardDirs, XodusQueueSerializer<T> serializer) {
+		this(shardDirs, dir -> new XodusQueue<>(dir, serializer));
+	}
+
+	private ShardedXodusQueue(List<String> shardDirs, Function<String, XodusQueue<T>> factory) {
+		if (shardDirs.isEmpty()) {
+			throw new IllegalArgumentException("At least one shard is required");
+		}
+
+		List<XodusQueue<T>> opened = new ArrayList<>(shardDirs.size());
+		try {
+			for (String dir : shardDirs) {
+				opened.add(factory.apply(dir));
+			}
+		}
+		catch (RuntimeException e) {
+			opened.forEach(XodusQueue::close);
+			throw e;
+		}
+		this.shards = Collections.unmodifiableList(opened);
+	}
+
+	private static List<String> shardDirectories(String databaseDir, int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("Shard count must be greater than zero");
+		}
+		List<String> dirs = new ArrayList<>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			dirs.add(Paths.get(databaseDir, "shard-" + i).toString());
+		}
+		return dirs;
+	}
+
+	public int getShardCount() {
+		return this.shards.size();
+	}
+
+	public XodusQueue<T> getShard(int shard) {
+		return this.shards.get(shard);
+	}
+
+	/**
+	 * Returns the shard that {@link #offer(Object, Object)} uses for the key.
+	 */
+	public int shardFor(Object key) {
+		return Math.floorMod(Objects.hashCode(key), this.shards.size());
+	}
+
+	/**
+	 * Inserts the element into the next shard in round-robin order.
+	 */
+	@Override
+	public boolean offer(T e) {
+		Objects.requireNonNull(e);
+		int shard = Math.floorMod(this.nextOfferShard.getAndIncrement(), this.shards.size());
+		return this.shards.get(shard).offer(e);
+	}
+
+	/**
+	 * Inserts the element into the shard selected by the hash of the key.
+	 */
+	public boolean offer(Object key, T e) {
+		Objects.requireNonNull(e);
+		return this.shards.get(shardFor(key)).offer(e);
+	}
+
+	/**
+	 * Retrieves and removes an element from the first non-empty shard. The shard to start
+	 * with rotates between calls.
+	 */
+	@Override
+	public T poll() {
+		int start = Math.floorMod(this.nextPollShard.getAndIncrement(), this.shards.size());
+		return pollFrom(start);
+	}
+
+	/**
+	 * Retrieves and removes the head of the given shard.
+	 */
+	public T poll(int shard) {
+		return this.shards.get(shard).poll();
+	}
+
+	/**
+	 * Retrieves and removes the head of the given shard. If the shard is empty and
+	 * {@code steal} is true the other shards are tried.
+	 */
+	public T poll(int shard, boolean steal) {
+		if (!steal) {
+			return poll(shard);
+		}
+		return pollFrom(shard);
+	}
+
+	private T pollFrom(int start) {
+		int n = this.shards.size();
+		for (int i = 0; i < n; i++) {
+			T e = this.shards.get((start + i) % n).poll();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the element the next {@link #poll()} returns, starting at the same shard.
+	 * A concurrent poll may still take it or move the start shard.
+	 */
+	@Override
+	public T peek() {
+		int n = this.shards.size();
+		int start = Math.floorMod(this.nextPollShard.get(), n);
+		for (int i = 0; i < n; i++) {
+			T e = this.shards.get((start + i) % n).peek();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		long size = sizeLong();
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+	}
+
+	public long sizeLong() {
+		long size = 0L;
+		for (XodusQueue<T> shard : this.shards) {
+			size += shard.sizeLong();
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (XodusQueue<T> shard : this.shards) {
+			if (!shard.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a snapshot iterator that visits the shards one after another.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		List<T> snapshot = new ArrayList<>();
+		for (XodusQueue<T> shard : this.shards) {
+			shard.iterator().forEachRemaining(snapshot::add);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		for (XodusQueue<T> shard : this.shards) {
+			if (shard.contains(o)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		for (XodusQueue<T> shard : this.shards) {
+			if (shard.remove(o)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void clear() {
+		this.shards.forEach(XodusQueue::clear);
+	}
+
+	@Override
+	public void close() {
+		RuntimeException failure = null;
+		for (XodusQueue<T> shard : this.shards) {
+			try {
+				shard.close();
+			}
+			catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+				else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+}
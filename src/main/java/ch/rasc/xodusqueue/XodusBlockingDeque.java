@@ -0,0 +1,569 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Persistent optionally bounded blocking deque, the counterpart of
+ * {@link java.util.concurrent.LinkedBlockingDeque}.
+ * <p>
+ * Keys are signed longs. The first element gets key 0, elements inserted at the front get
+ * the first key minus one and elements inserted at the back the last key plus one. Every
+ * operation at either end is a single seek, and keys are never renumbered.
+ */
+public class XodusBlockingDeque<T> extends AbstractXodusQueue<T> implements BlockingDeque<T> {
+
+	private static final String STORE_NAME = "deque";
+
+	private final XodusQueueSerializer<T> serializer;
+
+	private final long capacity;
+
+	private final ReentrantLock reentrantLock;
+
+	private final Condition notEmpty;
+
+	private final Condition notFull;
+
+	public XodusBlockingDeque(String databaseDir, Class<T> entryClass) {
+		this(databaseDir, entryClass, Long.MAX_VALUE);
+	}
+
+	public XodusBlockingDeque(String databaseDir, XodusQueueSerializer<T> serializer) {
+		this(databaseDir, serializer, Long.MAX_VALUE);
+	}
+
+	public XodusBlockingDeque(String databaseDir, Class<T> entryClass, long capacity) {
+		this(databaseDir, XodusQueue.serializerFor(entryClass), capacity);
+	}
+
+	public XodusBlockingDeque(String databaseDir, XodusQueueSerializer<T> serializer, long capacity) {
+		this(Environments.newInstance(databaseDir), serializer, capacity);
+	}
+
+	public XodusBlockingDeque(LogConfig logConfig, EnvironmentConfig environmentConfig,
+			XodusQueueSerializer<T> serializer, long capacity) {
+		this(Environments.newInstance(logConfig, environmentConfig), serializer, capacity);
+	}
+
+	private XodusBlockingDeque(Environment env, XodusQueueSerializer<T> serializer, long capacity) {
+		super(env, STORE_NAME, true);
+		if (capacity <= 0) {
+			env.close();
+			throw new IllegalArgumentException("Capacity must be greater than zero");
+		}
+		this.serializer = serializer;
+		this.capacity = capacity;
+		this.reentrantLock = new ReentrantLock();
+		this.notEmpty = this.reentrantLock.newCondition();
+		this.notFull = this.reentrantLock.newCondition();
+	}
+
+	@Override
+	T fromEntry(ByteIterable value) {
+		return this.serializer.fromEntry(value);
+	}
+
+	private void insert(T e, boolean first) {
+		ByteIterable value = this.serializer.toEntry(e);
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			try (Cursor cursor = store.openCursor(txn)) {
+				if (first) {
+					long key = cursor.getNext() ? LongBinding.entryToLong(cursor.getKey()) - 1 : 0L;
+					store.put(txn, LongBinding.longToEntry(key), value);
+				}
+				else {
+					long key = cursor.getLast() ? LongBinding.entryToLong(cursor.getKey()) + 1 : 0L;
+					store.putRight(txn, LongBinding.longToEntry(key), value);
+				}
+			}
+		});
+	}
+
+	private T extract(boolean first) {
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (first ? cursor.getNext() : cursor.getLast()) {
+						ByteIterable value = cursor.getValue();
+						cursor.deleteCurrent();
+						return fromEntry(value);
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	private T read(boolean first) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (first ? cursor.getNext() : cursor.getLast()) {
+						return fromEntry(cursor.getValue());
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	private boolean offer(T e, boolean first) {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			if (sizeLong() >= this.capacity) {
+				return false;
+			}
+			insert(e, first);
+			this.notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void put(T e, boolean first) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			while (sizeLong() >= this.capacity) {
+				this.notFull.await();
+			}
+			insert(e, first);
+			this.notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean offer(T e, boolean first, long timeout, TimeUnit unit) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			while (sizeLong() >= this.capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = this.notFull.awaitNanos(nanos);
+			}
+			insert(e, first);
+			this.notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private T poll(boolean first) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			T e = extract(first);
+			if (e != null) {
+				this.notFull.signal();
+			}
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private T take(boolean first) throws InterruptedException {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = extract(first)) == null) {
+				this.notEmpty.await();
+			}
+			this.notFull.signal();
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private T poll(boolean first, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = extract(first)) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.notEmpty.awaitNanos(nanos);
+			}
+			this.notFull.signal();
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void addFirst(T e) {
+		if (!offerFirst(e)) {
+			throw new IllegalStateException("Deque full");
+		}
+	}
+
+	@Override
+	public void addLast(T e) {
+		if (!offerLast(e)) {
+			throw new IllegalStateException("Deque full");
+		}
+	}
+
+	@Override
+	public boolean offerFirst(T e) {
+		return offer(e, true);
+	}
+
+	@Override
+	public boolean offerLast(T e) {
+		return offer(e, false);
+	}
+
+	@Override
+	public void putFirst(T e) throws InterruptedException {
+		put(e, true);
+	}
+
+	@Override
+	public void putLast(T e) throws InterruptedException {
+		put(e, false);
+	}
+
+	@Override
+	public boolean offerFirst(T e, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(e, true, timeout, unit);
+	}
+
+	@Override
+	public boolean offerLast(T e, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(e, false, timeout, unit);
+	}
+
+	@Override
+	public T removeFirst() {
+		T e = pollFirst();
+		if (e == null) {
+			throw new NoSuchElementException();
+		}
+		return e;
+	}
+
+	@Override
+	public T removeLast() {
+		T e = pollLast();
+		if (e == null) {
+			throw new NoSuchElementException();
+		}
+		return e;
+	}
+
+	@Override
+	public T pollFirst() {
+		return poll(true);
+	}
+
+	@Override
+	public T pollLast() {
+		return poll(false);
+	}
+
+	@Override
+	public T takeFirst() throws InterruptedException {
+		return take(true);
+	}
+
+	@Override
+	public T takeLast() throws InterruptedException {
+		return take(false);
+	}
+
+	@Override
+	public T pollFirst(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(true, timeout, unit);
+	}
+
+	@Override
+	public T pollLast(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(false, timeout, unit);
+	}
+
+	@Override
+	public T getFirst() {
+		T e = peekFirst();
+		if (e == null) {
+			throw new NoSuchElementException();
+		}
+		return e;
+	}
+
+	@Override
+	public T getLast() {
+		T e = peekLast();
+		if (e == null) {
+			throw new NoSuchElementException();
+		}
+		return e;
+	}
+
+	@Override
+	public T peekFirst() {
+		return read(true);
+	}
+
+	@Override
+	public T peekLast() {
+		return read(false);
+	}
+
+	@Override
+	public boolean removeFirstOccurrence(Object o) {
+		return removeOccurrence(o, true);
+	}
+
+	@Override
+	public boolean removeLastOccurrence(Object o) {
+		return removeOccurrence(o, false);
+	}
+
+	private boolean removeOccurrence(Object o, boolean first) {
+		if (o == null) {
+			return false;
+		}
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean removed = this.env.computeInExclusiveTransaction(txn -> {
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+				if (store != null) {
+					try (Cursor cursor = store.openCursor(txn)) {
+						boolean found = first ? cursor.getNext() : cursor.getLast();
+						while (found) {
+							if (o.equals(fromEntry(cursor.getValue()))) {
+								cursor.deleteCurrent();
+								return true;
+							}
+							found = first ? cursor.getNext() : cursor.getPrev();
+						}
+					}
+				}
+				return false;
+			});
+			if (removed) {
+				this.notFull.signal();
+			}
+			return removed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean add(T e) {
+		addLast(e);
+		return true;
+	}
+
+	@Override
+	public boolean offer(T e) {
+		return offerLast(e);
+	}
+
+	@Override
+	public void put(T e) throws InterruptedException {
+		putLast(e);
+	}
+
+	@Override
+	public boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+		return offerLast(e, timeout, unit);
+	}
+
+	@Override
+	public T poll() {
+		return pollFirst();
+	}
+
+	@Override
+	public T take() throws InterruptedException {
+		return takeFirst();
+	}
+
+	@Override
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return pollFirst(timeout, unit);
+	}
+
+	@Override
+	public T peek() {
+		return peekFirst();
+	}
+
+	@Override
+	public void push(T e) {
+		addFirst(e);
+	}
+
+	@Override
+	public T pop() {
+		return removeFirst();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return removeFirstOccurrence(o);
+	}
+
+	@Override
+	public int remainingCapacity() {
+		long remaining = this.capacity - sizeLong();
+		return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			int drained = super.drainTo(c, maxElements);
+			if (drained > 0) {
+				this.notFull.signalAll();
+			}
+			return drained;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			super.clear();
+			this.notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean removed = super.removeAll(c);
+			if (removed) {
+				this.notFull.signalAll();
+			}
+			return removed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean changed = super.retainAll(c);
+			if (changed) {
+				this.notFull.signalAll();
+			}
+			return changed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot iterator from the last to the first element.
+	 */
+	@Override
+	public Iterator<T> descendingIterator() {
+		List<T> snapshot = new ArrayList<>();
+		this.env.executeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					boolean found = cursor.getLast();
+					while (found) {
+						snapshot.add(fromEntry(cursor.getValue()));
+						found = cursor.getPrev();
+					}
+				}
+			}
+		});
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+
+}
@@ -15,30 +15,68 @@
  */
 package ch.rasc.xodusqueue;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.env.Environment;
 import jetbrains.exodus.env.EnvironmentConfig;
 import jetbrains.exodus.log.LogConfig;
 
 public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueue<T> {
 
-	private ReentrantLock reentrantLock;
+	private static final long PUT_ALL_CHUNK_SIZE = 10_000L;
+
+	/**
+	 * Guards all mutating operations. Read-only methods are inherited from XodusQueue and
+	 * run without the lock against a snapshot of a read-only transaction.
+	 */
+	ReentrantLock reentrantLock;
 
 	/** Condition for waiting takes */
-	private Condition notEmpty;
+	Condition notEmpty;
 
 	/** Condition for waiting puts */
-	private Condition notFull;
+	Condition notFull;
 
 	private long capacity;
 
+	/**
+	 * Maximum bytes of the stored keys and values, Long.MAX_VALUE when only the number of
+	 * elements is limited
+	 */
+	private long byteCapacity = Long.MAX_VALUE;
+
+	/** Asynchronous takes waiting for elements, guarded by the lock */
+	private final Deque<PendingTake<T, ?>> pendingTakes = new ArrayDeque<>();
+
+	/** Asynchronous offers waiting for space, guarded by the lock */
+	private final Deque<PendingOffer<T>> pendingOffers = new ArrayDeque<>();
+
+	/** Serves the asynchronous operations, created on first use, guarded by the lock */
+	private ExecutorService asyncExecutor;
+
+	private boolean serveScheduled;
+
+	private boolean closed;
+
 	public XodusBlockingQueue(String databaseDir, Class<T> entryClass) {
 		this(databaseDir, entryClass, Long.MAX_VALUE);
 	}
@@ -84,6 +122,38 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		initLocks(capacity, fair);
 	}
 
+	/**
+	 * Creates a queue that is limited by the number of elements and by the bytes of the
+	 * stored keys and values. The queue is full once the stored bytes reach
+	 * {@code byteCapacity}, so the last accepted element may exceed the budget by its own
+	 * size.
+	 */
+	public XodusBlockingQueue(String databaseDir, Class<T> entryClass, long capacity, long byteCapacity) {
+		super(validateCapacity(databaseDir, capacity, byteCapacity), entryClass);
+		initLocks(capacity, false);
+		initByteCapacity(byteCapacity);
+	}
+
+	public XodusBlockingQueue(String databaseDir, XodusQueueSerializer<T> serializer, long capacity,
+			long byteCapacity) {
+		super(validateCapacity(databaseDir, capacity, byteCapacity), serializer);
+		initLocks(capacity, false);
+		initByteCapacity(byteCapacity);
+	}
+
+	public XodusBlockingQueue(LogConfig logConfig, EnvironmentConfig environmentConfig,
+			XodusQueueSerializer<T> serializer, long capacity, long byteCapacity, boolean fair) {
+		super(validateCapacity(logConfig, capacity, byteCapacity), environmentConfig, serializer);
+		initLocks(capacity, fair);
+		initByteCapacity(byteCapacity);
+	}
+
+	XodusBlockingQueue(Environment env, String storeName, XodusQueueSerializer<T> serializer, XodusQueueOptions options,
+			boolean ownsEnvironment, long capacity, boolean fair) {
+		super(validateCapacity(env, capacity), storeName, serializer, options, ownsEnvironment);
+		initLocks(capacity, fair);
+	}
+
 	private static <T> T validateCapacity(T value, long capacity) {
 		if (capacity <= 0) {
 			throw new IllegalArgumentException("Capacity must be greater than zero");
@@ -91,6 +161,46 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		return value;
 	}
 
+	private static <T> T validateCapacity(T value, long capacity, long byteCapacity) {
+		if (byteCapacity <= 0) {
+			throw new IllegalArgumentException("Byte capacity must be greater than zero");
+		}
+		return validateCapacity(value, capacity);
+	}
+
+	private void initByteCapacity(long byteCapacity) {
+		this.byteCapacity = byteCapacity;
+		if (byteCapacity != Long.MAX_VALUE) {
+			enableByteAccounting();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that can still be stored before the byte capacity is
+	 * reached, Long.MAX_VALUE if the queue has no byte capacity.
+	 */
+	public long remainingByteCapacity() {
+		if (this.byteCapacity == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0L, this.byteCapacity - storedBytes());
+	}
+
+	/**
+	 * Returns how many elements fit into the element capacity, zero once the byte
+	 * capacity is reached.
+	 */
+	private long remainingElements() {
+		if (remainingByteCapacity() == 0L) {
+			return 0L;
+		}
+		return this.capacity - super.sizeLong();
+	}
+
+	private boolean isFull() {
+		return remainingElements() <= 0;
+	}
+
 	private void initLocks(long capacity, boolean fair) {
 		this.capacity = capacity;
 		this.reentrantLock = new ReentrantLock(fair);
@@ -98,6 +208,249 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		this.notFull = this.reentrantLock.newCondition();
 	}
 
+	private void signalNotEmpty(long n) {
+		final ReentrantLock lock = this.reentrantLock;
+		for (long i = n; i > 0 && lock.hasWaiters(this.notEmpty); i--) {
+			this.notEmpty.signal();
+		}
+		if (n > 0 && !this.pendingTakes.isEmpty()) {
+			scheduleServePending();
+		}
+	}
+
+	private void signalNotFull(long n) {
+		final ReentrantLock lock = this.reentrantLock;
+		for (long i = n; i > 0 && lock.hasWaiters(this.notFull); i--) {
+			this.notFull.signal();
+		}
+		if (n > 0 && !this.pendingOffers.isEmpty()) {
+			scheduleServePending();
+		}
+	}
+
+	/**
+	 * Inserts the element, waiting asynchronously for space if necessary. The returned
+	 * future completes once the element is stored.
+	 */
+	public CompletableFuture<Void> offerAsync(T e) {
+		Objects.requireNonNull(e);
+
+		PendingOffer<T> offer = new PendingOffer<>(e);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			if (this.closed) {
+				return CompletableFuture.failedFuture(new IllegalStateException("Queue closed"));
+			}
+			this.pendingOffers.add(offer);
+			scheduleServePending();
+		}
+		finally {
+			lock.unlock();
+		}
+		return offer.future;
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue, waiting asynchronously until an
+	 * element becomes available. Cancelling the returned future withdraws the take.
+	 */
+	public CompletableFuture<T> takeAsync() {
+		return enqueueTake(new PendingTake<>(1, drained -> drained.elements.get(0)));
+	}
+
+	/**
+	 * Retrieves and removes between one and {@code maxElements} elements from the head of
+	 * the queue in one transaction, waiting asynchronously until at least one element is
+	 * available. Cancelling the returned future withdraws the take.
+	 * <p>
+	 * Pending takes are completed on an internal executor thread as soon as elements are
+	 * added. Dependent actions registered with the non-async methods of the future run on
+	 * that thread and should not block.
+	 */
+	public CompletableFuture<List<T>> takeBatchAsync(int maxElements) {
+		if (maxElements <= 0) {
+			throw new IllegalArgumentException("maxElements must be greater than zero");
+		}
+		return enqueueTake(new PendingTake<>(maxElements, drained -> drained.elements));
+	}
+
+	/**
+	 * Like {@link #takeBatchAsync(int)}, but completes with the keys and stored values as
+	 * well, so elements that cannot be handed over can be restored with
+	 * {@link #restore(DrainedEntries)}.
+	 */
+	CompletableFuture<DrainedEntries<T>> drainAsync(int maxElements) {
+		return enqueueTake(new PendingTake<>(maxElements, drained -> drained));
+	}
+
+	private <R> CompletableFuture<R> enqueueTake(PendingTake<T, R> take) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			if (this.closed) {
+				return CompletableFuture.failedFuture(new IllegalStateException("Queue closed"));
+			}
+			this.pendingTakes.add(take);
+			scheduleServePending();
+		}
+		finally {
+			lock.unlock();
+		}
+		return take.future;
+	}
+
+	/**
+	 * Returns a publisher that emits the elements of this queue. Subscribers remove the
+	 * elements they receive. Each subscription takes up to {@code request(n)} elements,
+	 * at most 256, in one transaction and holds no thread while it waits for elements.
+	 * Elements are delivered on {@link ForkJoinPool#commonPool()}.
+	 */
+	public Flow.Publisher<T> asPublisher() {
+		return asPublisher(ForkJoinPool.commonPool(), 256);
+	}
+
+	/**
+	 * Returns a publisher that emits the elements of this queue. Elements are delivered
+	 * on the given executor and each transaction takes at most {@code maxBatchSize}
+	 * elements.
+	 */
+	public Flow.Publisher<T> asPublisher(Executor executor, int maxBatchSize) {
+		return new XodusQueuePublisher<>(this, executor, maxBatchSize);
+	}
+
+	private void scheduleServePending() {
+		if (this.serveScheduled || this.closed) {
+			return;
+		}
+		if (this.asyncExecutor == null) {
+			this.asyncExecutor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "xodus-queue-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		this.serveScheduled = true;
+		this.asyncExecutor.execute(this::servePending);
+	}
+
+	private void servePending() {
+		List<Runnable> completions = new ArrayList<>();
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean progress = true;
+			while (progress && !this.closed) {
+				progress = false;
+				signalNotFull(super.sweepExpiredIfDue());
+
+				while (!this.pendingOffers.isEmpty() && !isFull()) {
+					PendingOffer<T> offer = this.pendingOffers.poll();
+					if (offer.future.isDone()) {
+						continue;
+					}
+					try {
+						super.offer(offer.element);
+						completions.add(() -> offer.future.complete(null));
+						signalNotEmpty(1);
+						progress = true;
+					}
+					catch (RuntimeException ex) {
+						completions.add(() -> offer.future.completeExceptionally(ex));
+					}
+				}
+
+				while (!this.pendingTakes.isEmpty()) {
+					PendingTake<T, ?> take = this.pendingTakes.peek();
+					if (take.future.isDone()) {
+						this.pendingTakes.poll();
+						continue;
+					}
+					DrainedEntries<T> drained = super.drainEntries(take.maxElements);
+					int n = drained.size();
+					if (n == 0) {
+						break;
+					}
+					this.pendingTakes.poll();
+					completions.add(() -> {
+						if (!take.complete(drained)) {
+							// cancelled concurrently, don't lose the elements
+							restore(drained);
+						}
+					});
+					signalNotFull(n);
+					progress = true;
+				}
+			}
+		}
+		catch (RuntimeException ex) {
+			// fail the pending operations instead of leaving them hanging
+			for (PendingTake<T, ?> take : this.pendingTakes) {
+				completions.add(() -> take.future.completeExceptionally(ex));
+			}
+			this.pendingTakes.clear();
+			for (PendingOffer<T> offer : this.pendingOffers) {
+				completions.add(() -> offer.future.completeExceptionally(ex));
+			}
+			this.pendingOffers.clear();
+		}
+		finally {
+			this.serveScheduled = false;
+			lock.unlock();
+		}
+
+		completions.forEach(Runnable::run);
+	}
+
+	/**
+	 * Writes entries that were taken but could not be handed over back to the queue under
+	 * their original keys, so they return to their old position.
+	 */
+	void restore(DrainedEntries<T> entries) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			if (!this.closed) {
+				signalNotEmpty(super.restoreEntries(entries));
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		ExecutorService executor;
+		List<CompletableFuture<?>> pending = new ArrayList<>();
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			this.closed = true;
+			executor = this.asyncExecutor;
+			this.pendingTakes.forEach(take -> pending.add(take.future));
+			this.pendingTakes.clear();
+			this.pendingOffers.forEach(offer -> pending.add(offer.future));
+			this.pendingOffers.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		IllegalStateException closedException = new IllegalStateException("Queue closed");
+		pending.forEach(future -> future.completeExceptionally(closedException));
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		super.close();
+	}
+
 	@Override
 	public void put(T e) throws InterruptedException {
 		Objects.requireNonNull(e);
@@ -105,11 +458,11 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lockInterruptibly();
 		try {
-			while (super.sizeLong() >= this.capacity) {
+			while (isFull()) {
 				this.notFull.await();
 			}
 			super.offer(e);
-			this.notEmpty.signal();
+			signalNotEmpty(1);
 		}
 		finally {
 			lock.unlock();
@@ -124,14 +477,14 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lockInterruptibly();
 		try {
-			while (super.sizeLong() >= this.capacity) {
+			while (isFull()) {
 				if (nanos <= 0) {
 					return false;
 				}
 				nanos = this.notFull.awaitNanos(nanos);
 			}
 			super.offer(e);
-			this.notEmpty.signal();
+			signalNotEmpty(1);
 			return true;
 		}
 		finally {
@@ -146,12 +499,12 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			if (super.sizeLong() >= this.capacity) {
+			if (isFull()) {
 				return false;
 			}
 
 			boolean result = super.offer(e);
-			this.notEmpty.signal();
+			signalNotEmpty(1);
 			return result;
 		}
 		finally {
@@ -159,71 +512,94 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 		}
 	}
 
+	/**
+	 * Inserts the element with a time to live at the tail of the queue if this is
+	 * possible without exceeding the capacity.
+	 * @return true if the element was inserted, false if the queue is full
+	 */
 	@Override
-	public boolean addAll(Collection<? extends T> c) {
-		Objects.requireNonNull(c);
-
-		if (c == this) {
-			throw new IllegalArgumentException();
-		}
+	public boolean offer(T e, Duration ttl) {
+		Objects.requireNonNull(e);
 
-		boolean modified = false;
-		for (T e : c) {
-			if (add(e)) {
-				modified = true;
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			signalNotFull(super.sweepExpiredIfDue());
+			if (isFull()) {
+				return false;
 			}
+
+			boolean result = super.offer(e, ttl);
+			signalNotEmpty(1);
+			return result;
+		}
+		finally {
+			lock.unlock();
 		}
-		return modified;
 	}
 
 	@Override
-	public T poll() {
+	public long sweepExpired() {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			T e = super.poll();
-			if (e != null) {
-				this.notFull.signal();
-			}
-			return e;
+			long removed = super.sweepExpired();
+			signalNotFull(removed);
+			return removed;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * Inserts the element at the tail of the queue if this is possible without exceeding
+	 * the capacity.
+	 * @return the sequence id the element is stored under or -1 if the queue is full
+	 */
 	@Override
-	public T take() throws InterruptedException {
+	public long offerWithId(T e) {
+		Objects.requireNonNull(e);
+
 		final ReentrantLock lock = this.reentrantLock;
-		lock.lockInterruptibly();
+		lock.lock();
 		try {
-			while (super.sizeLong() == 0) {
-				this.notEmpty.await();
+			if (isFull()) {
+				return -1L;
 			}
-			T e = super.poll();
-			this.notFull.signal();
-			return e;
+
+			long sequenceId = super.offerWithId(e);
+			signalNotEmpty(1);
+			return sequenceId;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * Inserts the element at the tail of the queue if this is possible without exceeding
+	 * the capacity and no element with the same deduplication key was inserted within the
+	 * deduplication window.
+	 * @return true if the element was inserted, false if it is a duplicate or the queue
+	 * is full
+	 */
 	@Override
-	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
-		long nanos = unit.toNanos(timeout);
+	public boolean offerIfAbsent(String dedupKey, T e) {
+		Objects.requireNonNull(e);
+
 		final ReentrantLock lock = this.reentrantLock;
-		lock.lockInterruptibly();
+		lock.lock();
 		try {
-			while (super.sizeLong() == 0) {
-				if (nanos <= 0) {
-					return null;
-				}
-				nanos = this.notEmpty.awaitNanos(nanos);
+			if (isFull()) {
+				return false;
 			}
-			T e = super.poll();
-			this.notFull.signal();
-			return e;
+
+			boolean inserted = super.offerIfAbsent(dedupKey, e);
+			if (inserted) {
+				signalNotEmpty(1);
+			}
+			return inserted;
 		}
 		finally {
 			lock.unlock();
@@ -231,12 +607,16 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public int remainingCapacity() {
+	public boolean replaceById(long sequenceId, T e) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			long remaining = this.capacity - super.sizeLong();
-			return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+			boolean replaced = super.replaceById(sequenceId, e);
+			if (replaced && this.byteCapacity != Long.MAX_VALUE) {
+				// a smaller element may have freed bytes
+				signalNotFull(1);
+			}
+			return replaced;
 		}
 		finally {
 			lock.unlock();
@@ -244,30 +624,81 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public int drainTo(Collection<? super T> c) {
-		return drainTo(c, Integer.MAX_VALUE);
+	public boolean removeById(long sequenceId) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean removed = super.removeById(sequenceId);
+			if (removed) {
+				signalNotFull(1);
+			}
+			return removed;
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
+	/**
+	 * Adds as many elements as fit into the remaining element and byte capacity in one
+	 * transaction.
+	 * @throws IllegalStateException if not all elements fit into the queue. The elements
+	 * that fit are added nevertheless.
+	 */
 	@Override
-	public int drainTo(Collection<? super T> c, int maxElements) {
+	public boolean addAll(Collection<? extends T> c) {
 		Objects.requireNonNull(c);
 
 		if (c == this) {
 			throw new IllegalArgumentException();
 		}
 
-		if (maxElements <= 0) {
-			return 0;
+		Iterator<? extends T> it = c.iterator();
+		if (!it.hasNext()) {
+			return false;
 		}
 
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			int n = super.drainTo(c, maxElements);
-			for (int i = n; i > 0 && lock.hasWaiters(this.notFull); i--) {
-				this.notFull.signal();
+			long remaining = remainingElements();
+			long added = remaining > 0 ? super.addBatch(it, remaining, remainingByteCapacity()) : 0L;
+			signalNotEmpty(added);
+			if (it.hasNext()) {
+				throw new IllegalStateException("Queue full");
+			}
+			return added > 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds all elements, waiting for space if necessary. Elements are written in chunks
+	 * of at most {@value #PUT_ALL_CHUNK_SIZE} elements, each limited by the remaining
+	 * capacity and committed in one transaction. If the thread is interrupted while
+	 * waiting, the elements written so far stay in the queue.
+	 */
+	public void putAll(Collection<? extends T> c) throws InterruptedException {
+		Objects.requireNonNull(c);
+
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		Iterator<? extends T> it = c.iterator();
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			while (it.hasNext()) {
+				long remaining;
+				while ((remaining = remainingElements()) <= 0) {
+					this.notFull.await();
+				}
+				long added = super.addBatch(it, Math.min(remaining, PUT_ALL_CHUNK_SIZE), remainingByteCapacity());
+				signalNotEmpty(added);
 			}
-			return n;
 		}
 		finally {
 			lock.unlock();
@@ -275,15 +706,16 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public void clear() {
+	public T poll() {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			long k = super.sizeLong();
-			super.clear();
-			for (; k > 0 && lock.hasWaiters(this.notFull); k--) {
-				this.notFull.signal();
+			signalNotFull(super.sweepExpiredIfDue());
+			T e = super.poll();
+			if (e != null) {
+				signalNotFull(1);
 			}
+			return e;
 		}
 		finally {
 			lock.unlock();
@@ -291,15 +723,15 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public boolean remove(Object o) {
+	public T take() throws InterruptedException {
 		final ReentrantLock lock = this.reentrantLock;
-		lock.lock();
+		lock.lockInterruptibly();
 		try {
-			boolean removed = super.remove(o);
-			if (removed) {
-				this.notFull.signal();
+			T e;
+			while ((e = pollLocked()) == null) {
+				this.notEmpty.await();
 			}
-			return removed;
+			return e;
 		}
 		finally {
 			lock.unlock();
@@ -307,39 +739,73 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public boolean removeAll(Collection<?> c) {
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
 		final ReentrantLock lock = this.reentrantLock;
-		lock.lock();
+		lock.lockInterruptibly();
 		try {
-			long sizeBefore = super.sizeLong();
-			boolean removed = super.removeAll(c);
-			if (removed) {
-				long sizeAfter = super.sizeLong();
-				for (long i = sizeBefore - sizeAfter; i > 0 && lock.hasWaiters(this.notFull); i--) {
-					this.notFull.signal();
+			T e;
+			while ((e = pollLocked()) == null) {
+				if (nanos <= 0) {
+					return null;
 				}
+				nanos = this.notEmpty.awaitNanos(nanos);
 			}
-			return removed;
+			return e;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * Removes the expired elements and the head of the queue. Must be called with the
+	 * lock held. Checks the size first, so waiting on an empty queue does not open write
+	 * transactions.
+	 * @return the head or null if the queue is empty or held only expired elements
+	 */
+	private T pollLocked() {
+		signalNotFull(super.sweepExpiredIfDue());
+		if (super.sizeLong() == 0) {
+			return null;
+		}
+		T e = super.poll();
+		if (e != null) {
+			signalNotFull(1);
+		}
+		return e;
+	}
+
 	@Override
-	public boolean retainAll(Collection<?> c) {
+	public int remainingCapacity() {
+		long remaining = remainingElements();
+		return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		Objects.requireNonNull(c);
+
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		if (maxElements <= 0) {
+			return 0;
+		}
+
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			long sizeBefore = super.sizeLong();
-			boolean changed = super.retainAll(c);
-			if (changed) {
-				long sizeAfter = super.sizeLong();
-				for (long i = sizeBefore - sizeAfter; i > 0 && lock.hasWaiters(this.notFull); i--) {
-					this.notFull.signal();
-				}
-			}
-			return changed;
+			signalNotFull(super.sweepExpiredIfDue());
+			int n = super.drainTo(c, maxElements);
+			signalNotFull(n);
+			return n;
 		}
 		finally {
 			lock.unlock();
@@ -347,11 +813,13 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public T peek() {
+	public long discardHead(long n) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.peek();
+			long removed = super.discardHead(n);
+			signalNotFull(removed);
+			return removed;
 		}
 		finally {
 			lock.unlock();
@@ -359,11 +827,13 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public int size() {
+	public long trimTo(long keepLast) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.size();
+			long removed = super.trimTo(keepLast);
+			signalNotFull(removed);
+			return removed;
 		}
 		finally {
 			lock.unlock();
@@ -371,11 +841,13 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public long sizeLong() {
+	public long applyRetention() {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.sizeLong();
+			long removed = super.applyRetention();
+			signalNotFull(removed);
+			return removed;
 		}
 		finally {
 			lock.unlock();
@@ -383,11 +855,21 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public boolean isEmpty() {
+	public List<XodusQueueEntry<T>> lease(int maxElements, Duration visibility) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.isEmpty();
+			// leasing may return expired leases before it removes new elements
+			long sizeBefore = super.sizeLong();
+			List<XodusQueueEntry<T>> leased = super.lease(maxElements, visibility);
+			long sizeAfter = super.sizeLong();
+			if (sizeAfter < sizeBefore) {
+				signalNotFull(sizeBefore - sizeAfter);
+			}
+			else if (sizeAfter > sizeBefore) {
+				signalNotEmpty(sizeAfter - sizeBefore);
+			}
+			return leased;
 		}
 		finally {
 			lock.unlock();
@@ -395,11 +877,13 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public boolean contains(Object o) {
+	public int requeueExpiredLeases() {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.contains(o);
+			int requeued = super.requeueExpiredLeases();
+			signalNotEmpty(requeued);
+			return requeued;
 		}
 		finally {
 			lock.unlock();
@@ -407,11 +891,13 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public boolean containsAll(Collection<?> c) {
+	public void clear() {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.containsAll(c);
+			long k = super.sizeLong();
+			super.clear();
+			signalNotFull(k);
 		}
 		finally {
 			lock.unlock();
@@ -419,24 +905,33 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public Object[] toArray() {
+	public boolean remove(Object o) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.toArray();
+			boolean removed = super.remove(o);
+			if (removed) {
+				signalNotFull(1);
+			}
+			return removed;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 
-	@SuppressWarnings({ "unchecked", "hiding" })
 	@Override
-	public <T> T[] toArray(T[] a) {
+	public boolean removeAll(Collection<?> c) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.toArray(a);
+			long sizeBefore = super.sizeLong();
+			boolean removed = super.removeAll(c);
+			if (removed) {
+				long sizeAfter = super.sizeLong();
+				signalNotFull(sizeBefore - sizeAfter);
+			}
+			return removed;
 		}
 		finally {
 			lock.unlock();
@@ -444,15 +939,56 @@ public class XodusBlockingQueue<T> extends XodusQueue<T> implements BlockingQueu
 	}
 
 	@Override
-	public Iterator<T> iterator() {
+	public boolean retainAll(Collection<?> c) {
 		final ReentrantLock lock = this.reentrantLock;
 		lock.lock();
 		try {
-			return super.iterator();
+			long sizeBefore = super.sizeLong();
+			boolean changed = super.retainAll(c);
+			if (changed) {
+				long sizeAfter = super.sizeLong();
+				signalNotFull(sizeBefore - sizeAfter);
+			}
+			return changed;
 		}
 		finally {
 			lock.unlock();
 		}
 	}
 
+	private static final class PendingTake<T, R> {
+
+		final int maxElements;
+
+		/** Turns the taken entries into the result of the future */
+		private final Function<DrainedEntries<T>, R> result;
+
+		final CompletableFuture<R> future = new CompletableFuture<>();
+
+		PendingTake(int maxElements, Function<DrainedEntries<T>, R> result) {
+			this.maxElements = maxElements;
+			this.result = result;
+		}
+
+		/**
+		 * Completes the future with the taken entries, false if it was already cancelled.
+		 */
+		boolean complete(DrainedEntries<T> drained) {
+			return this.future.complete(this.result.apply(drained));
+		}
+
+	}
+
+	private static final class PendingOffer<T> {
+
+		final T element;
+
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		PendingOffer(T element) {
+			this.element = element;
+		}
+
+	}
+
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.Objects;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.bindings.StringBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.env.Transaction;
+
+/**
+ * {@link XodusQueue} that keeps only the latest value per key. Offering an element for a
+ * key that still has an element in the queue replaces that element in place, so it keeps
+ * its position. The backlog is bounded by the number of distinct keys instead of the
+ * update rate.
+ * <p>
+ * The {@code #keys} store maps a key to the sequence id of its element, the
+ * {@code #keyseq} store maps the sequence id back to the key. Index entries of elements
+ * that have left the queue are removed incrementally while offering.
+ */
+public class XodusConflatingQueue<T> extends XodusQueue<T> {
+
+	/**
+	 * Maximum number of stale index entries removed by one
+	 * {@link #offerOrReplace(String, Object)} call.
+	 */
+	private static final int INDEX_CLEANUP_BATCH = 16;
+
+	public XodusConflatingQueue(String databaseDir, Class<T> entryClass) {
+		this(databaseDir, serializerFor(entryClass));
+	}
+
+	public XodusConflatingQueue(String databaseDir, XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(databaseDir), serializer);
+	}
+
+	private XodusConflatingQueue(Environment env, XodusQueueSerializer<T> serializer) {
+		super(env, DEFAULT_STORE_NAME, serializer, XodusQueueOptions.defaults(), true);
+	}
+
+	/**
+	 * Replaces the queued element of the key, or appends the element at the tail if the
+	 * key has no element in the queue.
+	 * @return the sequence id the element is stored under
+	 */
+	public long offerOrReplace(String key, T e) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(e);
+		ByteIterable value = toEntry(e);
+		ByteIterable keyEntry = StringBinding.stringToEntry(key);
+
+		Environment env = environment();
+		long id = env.computeInExclusiveTransaction(txn -> {
+			Store store = env.openStore(storeName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store keys = env.openStore(keysStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store keySequences = env.openStore(keySequencesStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			removeStaleIndexEntries(txn, store, keys, keySequences);
+
+			ByteIterable existing = keys.get(txn, keyEntry);
+			ByteIterable old = existing != null ? store.get(txn, existing) : null;
+			if (old != null) {
+				store.put(txn, existing, withEnqueueTimeOf(value, old));
+				return LongBinding.entryToLong(existing);
+			}
+			if (existing != null) {
+				keySequences.delete(txn, existing);
+			}
+
+			long sequenceId = nextSequence();
+			ByteIterable sequenceEntry = LongBinding.longToEntry(sequenceId);
+			store.putRight(txn, sequenceEntry, value);
+			keys.put(txn, keyEntry, sequenceEntry);
+			keySequences.putRight(txn, sequenceEntry, keyEntry);
+			return sequenceId;
+		});
+
+		invalidateHead();
+		return id;
+	}
+
+	/**
+	 * Returns the queued element of the key or null if the key has no element in the
+	 * queue.
+	 */
+	public T getByKey(String key) {
+		Objects.requireNonNull(key);
+		Environment env = environment();
+		return env.computeInReadonlyTransaction(txn -> {
+			Store keys = env.openStore(keysStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			Store store = env.openStore(storeName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (keys != null && store != null) {
+				ByteIterable sequenceEntry = keys.get(txn, StringBinding.stringToEntry(key));
+				if (sequenceEntry != null) {
+					ByteIterable value = store.get(txn, sequenceEntry);
+					if (value != null) {
+						return fromEntry(value);
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * The sequence index may still hold ids of consumed elements. Reusing such an id
+	 * after a restart would attach the new element to the key of the stale entry.
+	 */
+	@Override
+	long lastReservedKey(Transaction txn) {
+		return lastKey(txn, keySequencesStoreName());
+	}
+
+	/**
+	 * Removes index entries of elements that already left the queue. Consumers remove
+	 * elements from the head, so these entries are at the start of the sequence index.
+	 */
+	private static void removeStaleIndexEntries(Transaction txn, Store store, Store keys, Store keySequences) {
+		int removed = 0;
+		try (Cursor cursor = keySequences.openCursor(txn)) {
+			while (removed < INDEX_CLEANUP_BATCH && cursor.getNext()) {
+				if (store.get(txn, cursor.getKey()) != null) {
+					break;
+				}
+				ByteIterable key = cursor.getValue();
+				ByteIterable indexed = keys.get(txn, key);
+				if (indexed != null && LongBinding.entryToLong(indexed) == LongBinding.entryToLong(cursor.getKey())) {
+					keys.delete(txn, key);
+				}
+				cursor.deleteCurrent();
+				removed++;
+			}
+		}
+	}
+
+	private String keysStoreName() {
+		return storeName() + "#keys";
+	}
+
+	private String keySequencesStoreName() {
+		return storeName() + "#keyseq";
+	}
+
+}
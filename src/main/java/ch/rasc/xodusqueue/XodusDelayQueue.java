@@ -0,0 +1,387 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.CompoundByteIterable;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Persistent unbounded blocking queue of delayed elements, the counterpart of
+ * {@link java.util.concurrent.DelayQueue}. An element can only be taken when its delay
+ * has expired. The head of the queue is the element whose delay expired furthest in the
+ * past.
+ * <p>
+ * The store key is the due time in epoch milliseconds followed by a sequence number, so
+ * an insert costs one put and the earliest element is always the first entry of the
+ * store. Due times are wall clock times and survive a restart. {@link #peek()},
+ * {@link #size()} and the iterator see all elements, expired or not.
+ */
+public class XodusDelayQueue<T> extends AbstractXodusQueue<T> implements BlockingQueue<T> {
+
+	private static final String STORE_NAME = "delayqueue";
+
+	private final XodusQueueSerializer<T> serializer;
+
+	private final ReentrantLock reentrantLock;
+
+	/**
+	 * Signalled when a new element becomes the head or when the leader gives up its role.
+	 */
+	private final Condition available;
+
+	/**
+	 * Thread that waits for the due time of the current head. All other takers wait
+	 * indefinitely until the leader returns or a new head arrives.
+	 */
+	private Thread leader;
+
+	public XodusDelayQueue(final String databaseDir, final Class<T> entryClass) {
+		this(databaseDir, XodusQueue.serializerFor(entryClass));
+	}
+
+	public XodusDelayQueue(final String databaseDir, final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(databaseDir), serializer);
+	}
+
+	public XodusDelayQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(logConfig, environmentConfig), serializer);
+	}
+
+	private XodusDelayQueue(final Environment env, final XodusQueueSerializer<T> serializer) {
+		super(env, STORE_NAME, true);
+		this.serializer = serializer;
+		this.reentrantLock = new ReentrantLock();
+		this.available = this.reentrantLock.newCondition();
+	}
+
+	@Override
+	T fromEntry(ByteIterable value) {
+		return this.serializer.fromEntry(value);
+	}
+
+	/**
+	 * Inserts the element without delay.
+	 */
+	@Override
+	public boolean offer(T e) {
+		return offer(e, Duration.ZERO);
+	}
+
+	/**
+	 * Inserts the element so that it becomes available after the delay.
+	 */
+	public boolean offer(T e, Duration delay) {
+		return offerAt(e, XodusQueue.deadline(System.currentTimeMillis(), delay));
+	}
+
+	/**
+	 * Inserts the element so that it becomes available at the given epoch millisecond.
+	 */
+	public boolean offerAt(T e, long dueTimeMillis) {
+		Objects.requireNonNull(e);
+		ByteIterable value = this.serializer.toEntry(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean newHead = this.env.computeInExclusiveTransaction(txn -> {
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				boolean head;
+				long sequence = 0L;
+				try (Cursor cursor = store.openCursor(txn)) {
+					head = !cursor.getNext() || dueTime(cursor.getKey()) > dueTimeMillis;
+
+					// the last entry with this due time sits right before the first entry
+					// of the next millisecond
+					boolean positioned;
+					if (dueTimeMillis == Long.MAX_VALUE
+							|| cursor.getSearchKeyRange(key(dueTimeMillis + 1, 0L)) == null) {
+						positioned = cursor.getLast();
+					}
+					else {
+						positioned = cursor.getPrev();
+					}
+					if (positioned && dueTime(cursor.getKey()) == dueTimeMillis) {
+						sequence = sequence(cursor.getKey()) + 1;
+					}
+				}
+				store.put(txn, key(dueTimeMillis, sequence), value);
+				return head;
+			});
+
+			if (newHead) {
+				this.leader = null;
+				this.available.signal();
+			}
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(T e) {
+		offer(e);
+	}
+
+	public void put(T e, Duration delay) {
+		offer(e, delay);
+	}
+
+	@Override
+	public boolean offer(T e, long timeout, TimeUnit unit) {
+		return offer(e);
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue if its delay has expired.
+	 * @return the head or null if the queue has no expired element
+	 */
+	@Override
+	public T poll() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return pollExpired(System.currentTimeMillis());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T take() throws InterruptedException {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			for (;;) {
+				long due = headDueTime();
+				if (due == -1L) {
+					this.available.await();
+					continue;
+				}
+				long delay = due - System.currentTimeMillis();
+				if (delay <= 0L) {
+					T e = pollExpired(due);
+					if (e != null) {
+						return e;
+					}
+					continue;
+				}
+				if (this.leader != null) {
+					this.available.await();
+				}
+				else {
+					Thread thisThread = Thread.currentThread();
+					this.leader = thisThread;
+					try {
+						this.available.awaitNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+					}
+					finally {
+						if (this.leader == thisThread) {
+							this.leader = null;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			if (this.leader == null && headDueTime() != -1L) {
+				this.available.signal();
+			}
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			for (;;) {
+				long due = headDueTime();
+				if (due == -1L) {
+					if (nanos <= 0L) {
+						return null;
+					}
+					nanos = this.available.awaitNanos(nanos);
+					continue;
+				}
+				long delay = TimeUnit.MILLISECONDS.toNanos(due - System.currentTimeMillis());
+				if (delay <= 0L) {
+					T e = pollExpired(due);
+					if (e != null) {
+						return e;
+					}
+					continue;
+				}
+				if (nanos <= 0L) {
+					return null;
+				}
+				if (nanos < delay || this.leader != null) {
+					nanos = this.available.awaitNanos(nanos);
+				}
+				else {
+					Thread thisThread = Thread.currentThread();
+					this.leader = thisThread;
+					try {
+						long timeLeft = this.available.awaitNanos(delay);
+						nanos -= delay - timeLeft;
+					}
+					finally {
+						if (this.leader == thisThread) {
+							this.leader = null;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			if (this.leader == null && headDueTime() != -1L) {
+				this.available.signal();
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the remaining delay of the head of the queue.
+	 * @return the delay, negative when already expired, or null if the queue is empty
+	 */
+	public Duration peekDelay() {
+		long due = headDueTime();
+		if (due == -1L) {
+			return null;
+		}
+		return Duration.ofMillis(due - System.currentTimeMillis());
+	}
+
+	private long headDueTime() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getNext()) {
+						return dueTime(cursor.getKey());
+					}
+				}
+			}
+			return -1L;
+		});
+	}
+
+	private T pollExpired(long now) {
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getNext() && dueTime(cursor.getKey()) <= now) {
+						ByteIterable value = cursor.getValue();
+						cursor.deleteCurrent();
+						return fromEntry(value);
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes up to {@code maxElements} expired elements and adds them to the collection.
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		Objects.requireNonNull(c);
+
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		if (maxElements <= 0) {
+			return 0;
+		}
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			List<T> drained = this.env.computeInExclusiveTransaction(txn -> {
+				List<T> elements = new ArrayList<>();
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+				if (store != null) {
+					try (Cursor cursor = store.openCursor(txn)) {
+						while (elements.size() < maxElements && cursor.getNext() && dueTime(cursor.getKey()) <= now) {
+							elements.add(fromEntry(cursor.getValue()));
+							cursor.deleteCurrent();
+						}
+					}
+				}
+				return elements;
+			});
+			c.addAll(drained);
+			return drained.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private static ByteIterable key(long dueTimeMillis, long sequence) {
+		return new CompoundByteIterable(
+				new ByteIterable[] { LongBinding.longToEntry(dueTimeMillis), LongBinding.longToEntry(sequence) });
+	}
+
+	private static long dueTime(ByteIterable key) {
+		return LongBinding.entryToLong(key.subIterable(0, 8));
+	}
+
+	private static long sequence(ByteIterable key) {
+		return LongBinding.entryToLong(key.subIterable(8, 8));
+	}
+
+}
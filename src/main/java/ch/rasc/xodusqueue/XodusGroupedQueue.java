@@ -0,0 +1,438 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ArrayByteIterable;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.ByteIterator;
+import jetbrains.exodus.CompoundByteIterable;
+import jetbrains.exodus.bindings.IntegerBinding;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.bindings.StringBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Persistent queue that preserves the order within a message group while consumers
+ * process different groups in parallel.
+ * <p>
+ * Taking an element locks its group until the element is completed with
+ * {@link #complete(long)} or released with {@link #release(long)}. While a group is
+ * locked, consumers skip its elements and take the oldest element of another group. Group
+ * locks and taken elements are stored in Xodus, so they survive a restart. Call
+ * {@link #releaseAll()} on startup to hand elements that were taken before a crash out
+ * again.
+ * <p>
+ * The {@code #groups} store indexes the queued elements by group and sequence id, the
+ * {@code #ready} store holds the oldest element of every group that is not locked. A take
+ * removes the first ready element and never looks at elements of locked groups.
+ */
+public class XodusGroupedQueue<T> implements AutoCloseable {
+
+	private static final String STORE_NAME = "groupedqueue";
+
+	private static final String LOCKS_STORE_NAME = STORE_NAME + "#locks";
+
+	private static final String IN_FLIGHT_STORE_NAME = STORE_NAME + "#inflight";
+
+	private static final String GROUPS_STORE_NAME = STORE_NAME + "#groups";
+
+	private static final String READY_STORE_NAME = STORE_NAME + "#ready";
+
+	private final Environment env;
+
+	private final XodusQueueSerializer<T> serializer;
+
+	private final AtomicLong sequence;
+
+	private final ReentrantLock reentrantLock = new ReentrantLock();
+
+	/**
+	 * Signalled when an element is added or a group is unlocked
+	 */
+	private final Condition available = this.reentrantLock.newCondition();
+
+	public XodusGroupedQueue(final String databaseDir, final Class<T> entryClass) {
+		this(databaseDir, XodusQueue.serializerFor(entryClass));
+	}
+
+	public XodusGroupedQueue(final String databaseDir, final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(databaseDir), serializer);
+	}
+
+	public XodusGroupedQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(logConfig, environmentConfig), serializer);
+	}
+
+	private XodusGroupedQueue(final Environment env, final XodusQueueSerializer<T> serializer) {
+		this.env = env;
+		this.serializer = serializer;
+		this.sequence = new AtomicLong(this.env.computeInReadonlyTransaction(
+				txn -> Math.max(lastKey(txn, STORE_NAME), lastKey(txn, IN_FLIGHT_STORE_NAME))));
+	}
+
+	private long lastKey(Transaction txn, String name) {
+		Store store = this.env.openStore(name, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		if (store != null) {
+			try (Cursor cursor = store.openCursor(txn)) {
+				if (cursor.getLast()) {
+					return LongBinding.entryToLong(cursor.getKey());
+				}
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Inserts the element at the tail of its group.
+	 * @return the sequence id of the element
+	 */
+	public long offer(String group, T e) {
+		Objects.requireNonNull(group);
+		Objects.requireNonNull(e);
+		ByteIterable value = encode(group, this.serializer.toEntry(e));
+		ByteIterable groupEntry = StringBinding.stringToEntry(group);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			long key = this.env.computeInExclusiveTransaction(txn -> {
+				Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				Store groups = this.env.openStore(GROUPS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				Store locks = this.env.openStore(LOCKS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				long id = this.sequence.incrementAndGet();
+				ByteIterable keyEntry = LongBinding.longToEntry(id);
+				store.putRight(txn, keyEntry, value);
+
+				// a group that is neither locked nor waiting becomes ready with this
+				// element
+				boolean idle = groupHead(txn, groups, groupEntry) == null && locks.get(txn, groupEntry) == null;
+				groups.put(txn, groupKey(groupEntry, keyEntry), ByteIterable.EMPTY);
+				if (idle) {
+					Store ready = this.env.openStore(READY_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+					ready.put(txn, keyEntry, groupEntry);
+				}
+				return id;
+			});
+			this.available.signal();
+			return key;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the oldest element whose group is not locked and locks the group.
+	 * @return the element with the sequence id to complete it, or null if no element is
+	 * available
+	 */
+	public XodusQueueEntry<T> poll() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return pollUnlocked();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until an element of an unlocked group is available, then takes it and locks
+	 * its group.
+	 */
+	public XodusQueueEntry<T> take() throws InterruptedException {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			XodusQueueEntry<T> entry;
+			while ((entry = pollUnlocked()) == null) {
+				this.available.await();
+			}
+			return entry;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public XodusQueueEntry<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			XodusQueueEntry<T> entry;
+			while ((entry = pollUnlocked()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.available.awaitNanos(nanos);
+			}
+			return entry;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private XodusQueueEntry<T> pollUnlocked() {
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store ready = this.env.openStore(READY_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (ready == null) {
+				return null;
+			}
+
+			ByteIterable key;
+			ByteIterable group;
+			try (Cursor cursor = ready.openCursor(txn)) {
+				if (!cursor.getNext()) {
+					return null;
+				}
+				key = new ArrayByteIterable(cursor.getKey());
+				group = new ArrayByteIterable(cursor.getValue());
+				cursor.deleteCurrent();
+			}
+
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store groups = this.env.openStore(GROUPS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store locks = this.env.openStore(LOCKS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store inFlight = this.env.openStore(IN_FLIGHT_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			ByteIterable value = store.get(txn, key);
+			store.delete(txn, key);
+			groups.delete(txn, groupKey(group, key));
+			locks.put(txn, group, key);
+			inFlight.put(txn, key, value);
+			return new XodusQueueEntry<>(LongBinding.entryToLong(key), this.serializer.fromEntry(payload(value)));
+		});
+	}
+
+	/**
+	 * Returns the sequence id of the oldest queued element of the group or null if the
+	 * group has no queued element.
+	 */
+	private static ByteIterable groupHead(Transaction txn, Store groups, ByteIterable group) {
+		try (Cursor cursor = groups.openCursor(txn)) {
+			if (cursor.getSearchKeyRange(group) != null) {
+				ByteIterable key = cursor.getKey();
+				int length = group.getLength();
+				if (key.getLength() == length + 8 && key.subIterable(0, length).compareTo(group) == 0) {
+					return new ArrayByteIterable(key.subIterable(length, 8));
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the oldest queued element of an unlocked group as ready to be taken.
+	 */
+	private void makeReady(Transaction txn, Store groups, ByteIterable group) {
+		ByteIterable head = groupHead(txn, groups, group);
+		if (head != null) {
+			Store ready = this.env.openStore(READY_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			ready.put(txn, head, group);
+		}
+	}
+
+	private static ByteIterable groupKey(ByteIterable group, ByteIterable key) {
+		return new CompoundByteIterable(new ByteIterable[] { group, key });
+	}
+
+	/**
+	 * Removes the taken element and unlocks its group.
+	 * @return false if no element with this sequence id is taken
+	 */
+	public boolean complete(long sequenceId) {
+		return finish(sequenceId, false);
+	}
+
+	/**
+	 * Puts the taken element back at the head of its group and unlocks the group, so the
+	 * element is handed out again.
+	 * @return false if no element with this sequence id is taken
+	 */
+	public boolean release(long sequenceId) {
+		return finish(sequenceId, true);
+	}
+
+	private boolean finish(long sequenceId, boolean requeue) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean finished = this.env.computeInExclusiveTransaction(txn -> {
+				Store inFlight = this.env.openStore(IN_FLIGHT_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+				if (inFlight == null) {
+					return false;
+				}
+				ByteIterable key = LongBinding.longToEntry(sequenceId);
+				ByteIterable value = inFlight.get(txn, key);
+				if (value == null) {
+					return false;
+				}
+				ByteIterable group = StringBinding.stringToEntry(group(value));
+				Store groups = this.env.openStore(GROUPS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				if (requeue) {
+					Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+					store.put(txn, key, value);
+					groups.put(txn, groupKey(group, key), ByteIterable.EMPTY);
+				}
+				inFlight.delete(txn, key);
+				Store locks = this.env.openStore(LOCKS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				locks.delete(txn, group);
+				makeReady(txn, groups, group);
+				return true;
+			});
+			if (finished) {
+				this.available.signalAll();
+			}
+			return finished;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts all taken elements back into the queue and unlocks all groups.
+	 * @return the number of released elements
+	 */
+	public long releaseAll() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			long released = this.env.computeInExclusiveTransaction(txn -> {
+				Store inFlight = this.env.openStore(IN_FLIGHT_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+				if (inFlight == null) {
+					return 0L;
+				}
+				Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				Store groups = this.env.openStore(GROUPS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+				Set<String> releasedGroups = new HashSet<>();
+				try (Cursor cursor = inFlight.openCursor(txn)) {
+					while (cursor.getNext()) {
+						String group = group(cursor.getValue());
+						store.put(txn, cursor.getKey(), cursor.getValue());
+						groups.put(txn, groupKey(StringBinding.stringToEntry(group), cursor.getKey()),
+								ByteIterable.EMPTY);
+						releasedGroups.add(group);
+					}
+				}
+				long n = inFlight.count(txn);
+				this.env.truncateStore(IN_FLIGHT_STORE_NAME, txn);
+				this.env.truncateStore(LOCKS_STORE_NAME, txn);
+				for (String group : releasedGroups) {
+					makeReady(txn, groups, StringBinding.stringToEntry(group));
+				}
+				return n;
+			});
+			if (released > 0) {
+				this.available.signalAll();
+			}
+			return released;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if an element of the group is currently taken.
+	 */
+	public boolean isLocked(String group) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store locks = this.env.openStore(LOCKS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			return locks != null && locks.get(txn, StringBinding.stringToEntry(group)) != null;
+		});
+	}
+
+	/**
+	 * Returns the number of elements waiting to be taken.
+	 */
+	public long size() {
+		return count(STORE_NAME);
+	}
+
+	/**
+	 * Returns the number of taken elements that are neither completed nor released.
+	 */
+	public long inFlightCount() {
+		return count(IN_FLIGHT_STORE_NAME);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	private long count(String name) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(name, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				return store.count(txn);
+			}
+			return 0L;
+		});
+	}
+
+	@Override
+	public void close() {
+		if (this.env != null) {
+			this.env.close();
+		}
+	}
+
+	/**
+	 * Stores the group as length-prefixed UTF-8 in front of the serialized element.
+	 */
+	private static ByteIterable encode(String group, ByteIterable payload) {
+		byte[] bytes = group.getBytes(StandardCharsets.UTF_8);
+		return new CompoundByteIterable(
+				new ByteIterable[] { IntegerBinding.intToEntry(bytes.length), new ArrayByteIterable(bytes), payload });
+	}
+
+	private static String group(ByteIterable value) {
+		int length = IntegerBinding.entryToInt(value.subIterable(0, 4));
+		byte[] bytes = new byte[length];
+		ByteIterator it = value.subIterable(4, length).iterator();
+		for (int i = 0; i < length; i++) {
+			bytes[i] = it.next();
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static ByteIterable payload(ByteIterable value) {
+		int offset = 4 + IntegerBinding.entryToInt(value.subIterable(0, 4));
+		return value.subIterable(offset, value.getLength() - offset);
+	}
+
+}
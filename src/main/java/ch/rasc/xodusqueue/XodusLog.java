@@ -0,0 +1,337 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.bindings.StringBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Persistent append-only log that several named consumers read independently. Every
+ * element is written once, no matter how many consumers there are.
+ * <p>
+ * Elements get consecutive offsets starting with 1. Each consumer has a committed offset,
+ * the offset of the last element it processed, stored in the {@code log#offsets} store.
+ * Reading does not remove anything. Once every registered consumer has committed past an
+ * element, the element is removed from the log.
+ */
+public class XodusLog<T> implements AutoCloseable {
+
+	private static final String STORE_NAME = "log";
+
+	private static final String OFFSETS_STORE_NAME = STORE_NAME + "#offsets";
+
+	private final Environment env;
+
+	private final XodusQueueSerializer<T> serializer;
+
+	/**
+	 * Offset of the last appended element
+	 */
+	private final AtomicLong lastOffset;
+
+	public XodusLog(final String databaseDir, final Class<T> entryClass) {
+		this(databaseDir, XodusQueue.serializerFor(entryClass));
+	}
+
+	public XodusLog(final String databaseDir, final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(databaseDir), serializer);
+	}
+
+	public XodusLog(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(logConfig, environmentConfig), serializer);
+	}
+
+	private XodusLog(final Environment env, final XodusQueueSerializer<T> serializer) {
+		this.env = env;
+		this.serializer = serializer;
+		this.lastOffset = new AtomicLong(readLastOffset());
+	}
+
+	/**
+	 * Returns the offset of the last element. A fully trimmed log has no elements left,
+	 * so the committed offsets are considered as well.
+	 */
+	private long readLastOffset() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			long last = 0L;
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getLast()) {
+						last = LongBinding.entryToLong(cursor.getKey());
+					}
+				}
+			}
+			for (long offset : readOffsets(txn).values()) {
+				last = Math.max(last, offset);
+			}
+			return last;
+		});
+	}
+
+	/**
+	 * Appends the element to the log.
+	 * @return the offset of the element
+	 */
+	public long append(T e) {
+		Objects.requireNonNull(e);
+		ByteIterable value = this.serializer.toEntry(e);
+
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			long offset = this.lastOffset.get() + 1;
+			store.putRight(txn, LongBinding.longToEntry(offset), value);
+			this.lastOffset.set(offset);
+			return offset;
+		});
+	}
+
+	/**
+	 * Appends all elements in one transaction.
+	 * @return the offset of the last appended element
+	 */
+	public long appendAll(Collection<? extends T> elements) {
+		List<ByteIterable> values = new ArrayList<>(elements.size());
+		for (T e : elements) {
+			values.add(this.serializer.toEntry(Objects.requireNonNull(e)));
+		}
+
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			long offset = this.lastOffset.get();
+			for (ByteIterable value : values) {
+				store.putRight(txn, LongBinding.longToEntry(++offset), value);
+			}
+			this.lastOffset.set(offset);
+			return offset;
+		});
+	}
+
+	/**
+	 * Returns up to {@code maxElements} elements starting at the given offset.
+	 */
+	public List<XodusQueueEntry<T>> read(long fromOffset, int maxElements) {
+		if (maxElements <= 0) {
+			return Collections.emptyList();
+		}
+
+		return this.env.computeInReadonlyTransaction(txn -> {
+			List<XodusQueueEntry<T>> entries = new ArrayList<>(Math.min(maxElements, 1024));
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getSearchKeyRange(LongBinding.longToEntry(fromOffset)) != null) {
+						do {
+							entries.add(new XodusQueueEntry<>(LongBinding.entryToLong(cursor.getKey()),
+									this.serializer.fromEntry(cursor.getValue())));
+						}
+						while (entries.size() < maxElements && cursor.getNext());
+					}
+				}
+			}
+			return entries;
+		});
+	}
+
+	/**
+	 * Returns up to {@code maxElements} elements after the committed offset of the
+	 * consumer. The offset only moves with {@link #commit(String, long)}, so calling this
+	 * again without a commit returns the same elements. An unknown consumer is registered
+	 * at the beginning of the log.
+	 */
+	public List<XodusQueueEntry<T>> poll(String consumer, int maxElements) {
+		return read(registerConsumer(consumer) + 1, maxElements);
+	}
+
+	/**
+	 * Stores the offset of the last element the consumer processed and removes the
+	 * elements that all consumers have processed.
+	 */
+	public void commit(String consumer, long offset) {
+		Objects.requireNonNull(consumer);
+		if (offset < 0 || offset > this.lastOffset.get()) {
+			throw new IllegalArgumentException("Offset " + offset + " is outside of the log");
+		}
+
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store offsets = this.env.openStore(OFFSETS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			offsets.put(txn, StringBinding.stringToEntry(consumer), LongBinding.longToEntry(offset));
+			trim(txn);
+		});
+	}
+
+	/**
+	 * Registers the consumer at the beginning of the log unless it is already registered.
+	 * Registered consumers prevent the removal of elements they have not processed yet.
+	 * @return the committed offset of the consumer
+	 */
+	public long registerConsumer(String consumer) {
+		Objects.requireNonNull(consumer);
+		Long committed = committedOffset(consumer);
+		if (committed != null) {
+			return committed;
+		}
+
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store offsets = this.env.openStore(OFFSETS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+			ByteIterable key = StringBinding.stringToEntry(consumer);
+			ByteIterable existing = offsets.get(txn, key);
+			if (existing != null) {
+				return LongBinding.entryToLong(existing);
+			}
+			offsets.put(txn, key, LongBinding.longToEntry(0L));
+			return 0L;
+		});
+	}
+
+	/**
+	 * Removes the consumer. Elements only it still needed are removed from the log.
+	 */
+	public boolean removeConsumer(String consumer) {
+		Objects.requireNonNull(consumer);
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store offsets = this.env.openStore(OFFSETS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (offsets != null && offsets.delete(txn, StringBinding.stringToEntry(consumer))) {
+				trim(txn);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Returns the committed offset of the consumer or null if it is not registered.
+	 */
+	public Long committedOffset(String consumer) {
+		Objects.requireNonNull(consumer);
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store offsets = this.env.openStore(OFFSETS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (offsets != null) {
+				ByteIterable value = offsets.get(txn, StringBinding.stringToEntry(consumer));
+				if (value != null) {
+					return LongBinding.entryToLong(value);
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Returns the committed offsets of all registered consumers.
+	 */
+	public Map<String, Long> getConsumers() {
+		return this.env.computeInReadonlyTransaction(txn -> Collections.unmodifiableMap(readOffsets(txn)));
+	}
+
+	/**
+	 * Returns the number of elements the consumer has not processed yet.
+	 */
+	public long lag(String consumer) {
+		Long committed = committedOffset(consumer);
+		return this.lastOffset.get() - (committed != null ? committed : 0L);
+	}
+
+	/**
+	 * Returns the offset of the last appended element or 0 if nothing was appended yet.
+	 */
+	public long lastOffset() {
+		return this.lastOffset.get();
+	}
+
+	/**
+	 * Returns the number of elements still stored in the log.
+	 */
+	public long size() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				return store.count(txn);
+			}
+			return 0L;
+		});
+	}
+
+	/**
+	 * Removes all elements that every registered consumer has processed. Does nothing
+	 * while no consumer is registered.
+	 * @return the number of removed elements
+	 */
+	public long trim() {
+		return this.env.computeInExclusiveTransaction(this::trim);
+	}
+
+	private long trim(Transaction txn) {
+		Map<String, Long> offsets = readOffsets(txn);
+		if (offsets.isEmpty()) {
+			return 0L;
+		}
+		long minOffset = Collections.min(offsets.values());
+
+		Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		long removed = 0L;
+		if (store != null) {
+			try (Cursor cursor = store.openCursor(txn)) {
+				while (cursor.getNext() && LongBinding.entryToLong(cursor.getKey()) <= minOffset) {
+					cursor.deleteCurrent();
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+	private Map<String, Long> readOffsets(Transaction txn) {
+		Map<String, Long> result = new TreeMap<>();
+		Store offsets = this.env.openStore(OFFSETS_STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		if (offsets != null) {
+			try (Cursor cursor = offsets.openCursor(txn)) {
+				while (cursor.getNext()) {
+					result.put(StringBinding.entryToString(cursor.getKey()),
+							LongBinding.entryToLong(cursor.getValue()));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		if (this.env != null) {
+			this.env.close();
+		}
+	}
+
+}
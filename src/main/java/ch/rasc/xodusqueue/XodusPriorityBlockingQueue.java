@@ -0,0 +1,170 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Unbounded blocking variant of {@link XodusPriorityQueue}. Inserts never block,
+ * {@link #take()} waits until an element is available.
+ */
+public class XodusPriorityBlockingQueue<T> extends XodusPriorityQueue<T> implements BlockingQueue<T> {
+
+	private final ReentrantLock reentrantLock;
+
+	private final Condition notEmpty;
+
+	public XodusPriorityBlockingQueue(String databaseDir, Class<T> entryClass) {
+		this(databaseDir, entryClass, false);
+	}
+
+	public XodusPriorityBlockingQueue(String databaseDir, XodusQueueSerializer<T> serializer) {
+		this(databaseDir, serializer, false);
+	}
+
+	public XodusPriorityBlockingQueue(LogConfig logConfig, EnvironmentConfig environmentConfig,
+			XodusQueueSerializer<T> serializer) {
+		super(logConfig, environmentConfig, serializer);
+		this.reentrantLock = new ReentrantLock(false);
+		this.notEmpty = this.reentrantLock.newCondition();
+	}
+
+	public XodusPriorityBlockingQueue(String databaseDir, Class<T> entryClass, boolean fair) {
+		super(databaseDir, entryClass);
+		this.reentrantLock = new ReentrantLock(fair);
+		this.notEmpty = this.reentrantLock.newCondition();
+	}
+
+	public XodusPriorityBlockingQueue(String databaseDir, XodusQueueSerializer<T> serializer, boolean fair) {
+		super(databaseDir, serializer);
+		this.reentrantLock = new ReentrantLock(fair);
+		this.notEmpty = this.reentrantLock.newCondition();
+	}
+
+	@Override
+	public boolean offer(T e, int priority) {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			boolean result = super.offer(e, priority);
+			this.notEmpty.signal();
+			return result;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(T e) {
+		offer(e);
+	}
+
+	/**
+	 * Inserts the element with the given priority. Never blocks because the queue is
+	 * unbounded.
+	 */
+	public void put(T e, int priority) {
+		offer(e, priority);
+	}
+
+	@Override
+	public boolean offer(T e, long timeout, TimeUnit unit) {
+		return offer(e);
+	}
+
+	@Override
+	public T poll() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return super.poll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T take() throws InterruptedException {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = super.poll()) == null) {
+				this.notEmpty.await();
+			}
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = super.poll()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.notEmpty.awaitNanos(nanos);
+			}
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return super.drainTo(c, maxElements);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.Objects;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.CompoundByteIterable;
+import jetbrains.exodus.bindings.IntegerBinding;
+import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Persistent queue that orders its elements by priority. Elements with a higher priority
+ * are dequeued first, elements with the same priority in insertion order.
+ * <p>
+ * The store key is the inverted priority followed by a per priority sequence number, so
+ * the head of the queue is always the first entry of the store.
+ */
+public class XodusPriorityQueue<T> extends AbstractXodusQueue<T> {
+
+	public static final int DEFAULT_PRIORITY = 0;
+
+	private static final String STORE_NAME = "priorityqueue";
+
+	private final XodusQueueSerializer<T> serializer;
+
+	public XodusPriorityQueue(final String databaseDir, final Class<T> entryClass) {
+		this(databaseDir, XodusQueue.serializerFor(entryClass));
+	}
+
+	public XodusPriorityQueue(final String databaseDir, final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(databaseDir), serializer);
+	}
+
+	public XodusPriorityQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer) {
+		this(Environments.newInstance(logConfig, environmentConfig), serializer);
+	}
+
+	private XodusPriorityQueue(final Environment env, final XodusQueueSerializer<T> serializer) {
+		super(env, STORE_NAME, true);
+		this.serializer = serializer;
+	}
+
+	@Override
+	T fromEntry(ByteIterable value) {
+		return this.serializer.fromEntry(value);
+	}
+
+	/**
+	 * Inserts the element with {@link #DEFAULT_PRIORITY}.
+	 */
+	@Override
+	public boolean offer(T e) {
+		return offer(e, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Inserts the element behind all elements with the same or a higher priority.
+	 */
+	public boolean offer(T e, int priority) {
+		Objects.requireNonNull(e);
+		ByteIterable value = this.serializer.toEntry(e);
+
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			long sequence = 0L;
+			try (Cursor cursor = store.openCursor(txn)) {
+				// the last entry of this priority sits right before the first entry
+				// of the next lower priority
+				boolean positioned;
+				if (priority == Integer.MIN_VALUE) {
+					positioned = cursor.getLast();
+				}
+				else if (cursor.getSearchKeyRange(key(priority - 1, 0L)) != null) {
+					positioned = cursor.getPrev();
+				}
+				else {
+					positioned = cursor.getLast();
+				}
+				if (positioned && priority(cursor.getKey()) == priority) {
+					sequence = sequence(cursor.getKey()) + 1;
+				}
+			}
+			store.put(txn, key(priority, sequence), value);
+		});
+		return true;
+	}
+
+	/**
+	 * Returns the priority of the head of the queue.
+	 * @return the priority or null if the queue is empty
+	 */
+	public Integer peekPriority() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getNext()) {
+						return priority(cursor.getKey());
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	private static ByteIterable key(int priority, long sequence) {
+		// inverted so that higher priorities sort first
+		return new CompoundByteIterable(
+				new ByteIterable[] { IntegerBinding.intToEntry(~priority), LongBinding.longToEntry(sequence) });
+	}
+
+	private static int priority(ByteIterable key) {
+		return ~IntegerBinding.entryToInt(key.subIterable(0, 4));
+	}
+
+	private static long sequence(ByteIterable key) {
+		return LongBinding.entryToLong(key.subIterable(4, 8));
+	}
+
+}
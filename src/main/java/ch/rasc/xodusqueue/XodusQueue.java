@@ -17,13 +17,18 @@ package ch.rasc.xodusqueue;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.AbstractQueue;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Collections;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ch.rasc.xodusqueue.serializer.BigDecimalXodusQueueSerializer;
 import ch.rasc.xodusqueue.serializer.BigIntegerXodusQueueSerializer;
@@ -37,8 +42,12 @@ import ch.rasc.xodusqueue.serializer.LongXodusQueueSerializer;
 import ch.rasc.xodusqueue.serializer.ShortXodusQueueSerializer;
 import ch.rasc.xodusqueue.serializer.StringXodusQueueSerializer;
 import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.ArrayByteIterable;
 import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.CompoundByteIterable;
+import jetbrains.exodus.bindings.IntegerBinding;
 import jetbrains.exodus.bindings.LongBinding;
+import jetbrains.exodus.bindings.StringBinding;
 import jetbrains.exodus.env.Cursor;
 import jetbrains.exodus.env.Environment;
 import jetbrains.exodus.env.EnvironmentConfig;
@@ -46,87 +55,779 @@ import jetbrains.exodus.env.Environments;
 import jetbrains.exodus.env.Store;
 import jetbrains.exodus.env.StoreConfig;
 import jetbrains.exodus.env.Transaction;
-import jetbrains.exodus.env.TransactionalComputable;
 import jetbrains.exodus.log.LogConfig;
 
-public class XodusQueue<T> extends AbstractQueue<T> implements AutoCloseable {
+public class XodusQueue<T> extends AbstractXodusQueue<T> {
 
-	private static final String STORE_NAME = "queue";
+	static final String DEFAULT_STORE_NAME = "queue";
 
-	private final Environment env;
+	/**
+	 * Upper bound for the number of surviving entries that {@link #discardHead(long)}
+	 * copies aside and writes back after truncating the store.
+	 */
+	private static final long REWRITE_TAIL_LIMIT = 10_000L;
+
+	/**
+	 * Upper bound for the bytes of the keys and values that {@link #discardHead(long)}
+	 * copies aside. A larger tail is left in place and the head is deleted entry by
+	 * entry.
+	 */
+	private static final long REWRITE_TAIL_BYTES_LIMIT = 4L * 1024 * 1024;
+
+	/**
+	 * Maximum number of expired deduplication keys removed by one
+	 * {@link #offerIfAbsent(String, Object)} call.
+	 */
+	private static final int DEDUP_CLEANUP_BATCH = 16;
+
+	private static final ByteIterable STORED_BYTES_KEY = StringBinding.stringToEntry("storedBytes");
+
+	/**
+	 * Format of the stored values, {@link #FORMAT_PLAIN} if absent
+	 */
+	private static final ByteIterable FORMAT_KEY = StringBinding.stringToEntry("format");
+
+	private static final int FORMAT_PLAIN = 0;
+
+	private static final int FORMAT_ENVELOPE = 1;
+
+	private static final byte ENVELOPE_VERSION = 1;
+
+	/**
+	 * Version byte, flags byte and the enqueue timestamp
+	 */
+	private static final int ENVELOPE_HEADER_LENGTH = 10;
+
+	/**
+	 * Largest key ever written with a time to live. The expiry index may still reference
+	 * it after the element is gone, so the key must not be handed out again.
+	 */
+	private static final ByteIterable TTL_LAST_KEY = StringBinding.stringToEntry("ttlLastKey");
 
 	private final XodusQueueSerializer<T> serializer;
 
-	@SuppressWarnings("unchecked")
+	private final XodusQueueOptions.WriteMode writeMode;
+
+	private final XodusQueueOptions options;
+
+	private final boolean envelope;
+
+	private final XodusQueueHistogram timeInQueue = new XodusQueueHistogram();
+
+	/**
+	 * Runs {@link #applyRetention()} periodically, null when no retention is configured
+	 */
+	private final ScheduledExecutorService retentionExecutor;
+
+	/**
+	 * Runs {@link #sweepExpired()} periodically, started with the first element that has
+	 * a time to live
+	 */
+	private volatile ScheduledExecutorService expiryExecutor;
+
+	/**
+	 * Earliest expiry in the expiry index or Long.MAX_VALUE if there is none. Lets polls
+	 * skip the index until an element may have expired. Only written inside exclusive
+	 * transactions.
+	 */
+	private volatile long earliestExpiry;
+
+	/**
+	 * Last key handed out for an append. Initialized with the last key in the store.
+	 */
+	private final AtomicLong sequence;
+
+	/**
+	 * Deserialized head of the queue. Every committed change of the head replaces the
+	 * reference with a new unloaded instance, so a reader that loaded the head from an
+	 * older snapshot can never install it.
+	 */
+	private final AtomicReference<CachedHead<T>> cachedHead = new AtomicReference<>(new CachedHead<>(false, null));
+
+	/**
+	 * True when the bytes of the stored keys and values are counted in the meta store,
+	 * see {@link #enableByteAccounting()}
+	 */
+	private volatile boolean byteAccounting;
+
 	public XodusQueue(final String databaseDir, final Class<T> entryClass) {
-		this.env = Environments.newInstance(databaseDir);
+		this(databaseDir, entryClass, XodusQueueOptions.defaults());
+	}
+
+	public XodusQueue(final String databaseDir, final XodusQueueSerializer<T> serializer) {
+		this(databaseDir, serializer, XodusQueueOptions.defaults());
+	}
 
+	public XodusQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer) {
+		this(logConfig, environmentConfig, serializer, XodusQueueOptions.defaults());
+	}
+
+	public XodusQueue(final String databaseDir, final Class<T> entryClass, final XodusQueueOptions options) {
+		this(databaseDir, serializerFor(entryClass), options);
+	}
+
+	public XodusQueue(final String databaseDir, final XodusQueueSerializer<T> serializer,
+			final XodusQueueOptions options) {
+		this(Environments.newInstance(databaseDir), DEFAULT_STORE_NAME, serializer, options, true);
+	}
+
+	public XodusQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
+			final XodusQueueSerializer<T> serializer, final XodusQueueOptions options) {
+		this(Environments.newInstance(logConfig, environmentConfig), DEFAULT_STORE_NAME, serializer, options, true);
+	}
+
+	XodusQueue(final Environment env, final String storeName, final XodusQueueSerializer<T> serializer,
+			final XodusQueueOptions options, final boolean ownsEnvironment) {
+		super(env, storeName, ownsEnvironment);
+		this.serializer = serializer;
+		this.writeMode = options.getWriteMode();
+		this.options = options;
+		this.envelope = options.isEnvelope();
+		try {
+			checkFormat();
+		}
+		catch (RuntimeException e) {
+			if (ownsEnvironment) {
+				env.close();
+			}
+			throw e;
+		}
+		indexLeaseDeadlines();
+		this.sequence = new AtomicLong(readLastKey());
+		this.earliestExpiry = readEarliestExpiry();
+		if (options.getRetentionMaxBytes() != Long.MAX_VALUE) {
+			enableByteAccounting();
+		}
+
+		long interval = options.getRetentionInterval().toMillis();
+		if (options.hasRetention() && interval > 0) {
+			this.retentionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "xodus-queue-retention");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.retentionExecutor.scheduleWithFixedDelay(() -> {
+				try {
+					applyRetention();
+				}
+				catch (RuntimeException e) {
+					// keep the schedule alive, the next run tries again
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		else {
+			this.retentionExecutor = null;
+		}
+
+		if (this.earliestExpiry != Long.MAX_VALUE) {
+			startExpirySweeper();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> XodusQueueSerializer<T> serializerFor(final Class<T> entryClass) {
 		if (entryClass == String.class) {
-			this.serializer = (XodusQueueSerializer<T>) new StringXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new StringXodusQueueSerializer();
 		}
 		else if (entryClass == Integer.class) {
-			this.serializer = (XodusQueueSerializer<T>) new IntegerXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new IntegerXodusQueueSerializer();
 		}
 		else if (entryClass == Long.class) {
-			this.serializer = (XodusQueueSerializer<T>) new LongXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new LongXodusQueueSerializer();
 		}
 		else if (entryClass == Boolean.class) {
-			this.serializer = (XodusQueueSerializer<T>) new BooleanXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new BooleanXodusQueueSerializer();
 		}
 		else if (entryClass == Byte.class) {
-			this.serializer = (XodusQueueSerializer<T>) new ByteXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new ByteXodusQueueSerializer();
 		}
 		else if (entryClass == Double.class) {
-			this.serializer = (XodusQueueSerializer<T>) new DoubleXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new DoubleXodusQueueSerializer();
 		}
 		else if (entryClass == Float.class) {
-			this.serializer = (XodusQueueSerializer<T>) new FloatXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new FloatXodusQueueSerializer();
 		}
 		else if (entryClass == Short.class) {
-			this.serializer = (XodusQueueSerializer<T>) new ShortXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new ShortXodusQueueSerializer();
 		}
 		else if (entryClass == BigInteger.class) {
-			this.serializer = (XodusQueueSerializer<T>) new BigIntegerXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new BigIntegerXodusQueueSerializer();
 		}
 		else if (entryClass == BigDecimal.class) {
-			this.serializer = (XodusQueueSerializer<T>) new BigDecimalXodusQueueSerializer();
+			return (XodusQueueSerializer<T>) new BigDecimalXodusQueueSerializer();
 		}
-		else {
-			this.serializer = new DefaultXodusQueueSerializer<>(entryClass);
+		return new DefaultXodusQueueSerializer<>(entryClass);
+	}
+
+	/**
+	 * Records the value format in the meta store. A queue that holds elements, queued or
+	 * leased, must be opened with the format its values were written with.
+	 */
+	private void checkFormat() {
+		int format = this.envelope ? FORMAT_ENVELOPE : FORMAT_PLAIN;
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			ByteIterable stored = meta != null ? meta.get(txn, FORMAT_KEY) : null;
+			int storedFormat = stored != null ? IntegerBinding.entryToInt(stored) : FORMAT_PLAIN;
+			if (storedFormat == format) {
+				return;
+			}
+			if (count(txn, this.storeName) > 0 || count(txn, inFlightStoreName()) > 0) {
+				throw new IllegalStateException("Queue " + this.storeName + " holds elements written "
+						+ (storedFormat == FORMAT_ENVELOPE ? "with" : "without") + " envelope");
+			}
+			if (meta == null) {
+				meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			}
+			meta.put(txn, FORMAT_KEY, IntegerBinding.intToEntry(format));
+		});
+	}
+
+	/**
+	 * Builds the deadline index of the leased elements if the in-flight store was written
+	 * without one.
+	 */
+	private void indexLeaseDeadlines() {
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store inFlight = this.env.openStore(inFlightStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (inFlight == null || inFlight.count(txn) == 0 || this.env.openStore(leaseDeadlineStoreName(),
+					StoreConfig.WITHOUT_DUPLICATES, txn, false) != null) {
+				return;
+			}
+			Store deadlines = this.env.openStore(leaseDeadlineStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			try (Cursor cursor = inFlight.openCursor(txn)) {
+				while (cursor.getNext()) {
+					deadlines.put(txn, leaseDeadlineKey(cursor.getValue().subIterable(0, 8), cursor.getKey()),
+							ByteIterable.EMPTY);
+				}
+			}
+		});
+	}
+
+	private long count(Transaction txn, String name) {
+		Store store = this.env.openStore(name, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		return store != null ? store.count(txn) : 0L;
+	}
+
+	/**
+	 * Returns the epoch millisecond {@code delay} after {@code now}, saturated at
+	 * {@link Long#MAX_VALUE}. A negative delay counts as zero.
+	 */
+	static long deadline(long now, Duration delay) {
+		if (delay.isNegative()) {
+			return now;
 		}
+		long millis = delay.getSeconds() < Long.MAX_VALUE / 1000 ? delay.toMillis() : Long.MAX_VALUE;
+		return millis < Long.MAX_VALUE - now ? now + millis : Long.MAX_VALUE;
 	}
 
-	public XodusQueue(final String databaseDir, final XodusQueueSerializer<T> serializer) {
-		this.env = Environments.newInstance(databaseDir);
-		this.serializer = serializer;
+	/**
+	 * Serializes the element and wraps it into an envelope if enabled.
+	 */
+	ByteIterable toEntry(T e) {
+		ByteIterable value = this.serializer.toEntry(e);
+		if (!this.envelope) {
+			return value;
+		}
+		return new CompoundByteIterable(new ByteIterable[] { new ArrayByteIterable(new byte[] { ENVELOPE_VERSION, 0 }),
+				LongBinding.longToEntry(System.currentTimeMillis()), value });
 	}
 
-	public XodusQueue(final LogConfig logConfig, final EnvironmentConfig environmentConfig,
-			final XodusQueueSerializer<T> serializer) {
-		this.env = Environments.newInstance(logConfig, environmentConfig);
-		this.serializer = serializer;
+	/**
+	 * Returns the value written by {@link #toEntry(Object)} with the envelope header of
+	 * the stored value {@code old} it replaces in place, so the element keeps its enqueue
+	 * time.
+	 */
+	ByteIterable withEnqueueTimeOf(ByteIterable value, ByteIterable old) {
+		if (!this.envelope) {
+			return value;
+		}
+		return new CompoundByteIterable(new ByteIterable[] { old.subIterable(0, ENVELOPE_HEADER_LENGTH),
+				value.subIterable(ENVELOPE_HEADER_LENGTH, value.getLength() - ENVELOPE_HEADER_LENGTH) });
 	}
 
+	/**
+	 * Deserializes the element of a stored value written by {@link #toEntry(Object)}.
+	 */
 	@Override
-	public boolean offer(T e) {
-		Objects.requireNonNull(e);
+	T fromEntry(ByteIterable value) {
+		if (!this.envelope) {
+			return this.serializer.fromEntry(value);
+		}
+		return this.serializer
+			.fromEntry(value.subIterable(ENVELOPE_HEADER_LENGTH, value.getLength() - ENVELOPE_HEADER_LENGTH));
+	}
 
-		this.env.executeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+	private static long enqueueTime(ByteIterable value) {
+		byte version = value.iterator().next();
+		if (version != ENVELOPE_VERSION) {
+			throw new IllegalStateException("Unsupported envelope version " + version);
+		}
+		return LongBinding.entryToLong(value.subIterable(2, 8));
+	}
+
+	/**
+	 * Records the time in queue of a value that leaves the queue.
+	 */
+	@Override
+	void recordDequeue(ByteIterable value, long now) {
+		if (this.envelope) {
+			this.timeInQueue.record(now - enqueueTime(value));
+		}
+	}
+
+	/**
+	 * Returns how long the head of the queue has been waiting since it was enqueued,
+	 * {@link Duration#ZERO} if the queue is empty. Reads only the header of the head.
+	 * @throws IllegalStateException if the queue does not store envelopes, see
+	 * {@link XodusQueueOptions#withEnvelope(boolean)}
+	 */
+	public Duration oldestElementAge() {
+		requireEnvelope();
+		long enqueued = this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				try (Cursor cursor = store.openCursor(txn)) {
+					if (cursor.getNext()) {
+						return enqueueTime(cursor.getValue());
+					}
+				}
+			}
+			return -1L;
+		});
+		if (enqueued == -1L) {
+			return Duration.ZERO;
+		}
+		return Duration.ofMillis(Math.max(0L, System.currentTimeMillis() - enqueued));
+	}
+
+	/**
+	 * Returns the histogram of the time elements spent in the queue. Recorded when
+	 * elements are polled, drained or leased, since this queue was opened.
+	 * @throws IllegalStateException if the queue does not store envelopes, see
+	 * {@link XodusQueueOptions#withEnvelope(boolean)}
+	 */
+	public XodusQueueHistogram timeInQueue() {
+		requireEnvelope();
+		return this.timeInQueue;
+	}
+
+	private void requireEnvelope() {
+		if (!this.envelope) {
+			throw new IllegalStateException("Envelope not enabled");
+		}
+	}
+
+	/**
+	 * Returns the largest key of the queue, of its leased elements, of the retention time
+	 * index and of the keys reserved by subclasses, so that a new element never reuses
+	 * the id of a lease that may return to the queue or of an index entry that still
+	 * references it.
+	 */
+	private long readLastKey() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			long lastKey = Math.max(lastKey(txn, this.storeName), lastKey(txn, inFlightStoreName()));
+			lastKey = Math.max(lastKey, lastReservedKey(txn));
+			Store timeIndex = this.env.openStore(timeIndexStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (timeIndex != null) {
+				try (Cursor cursor = timeIndex.openCursor(txn)) {
+					if (cursor.getLast()) {
+						lastKey = Math.max(lastKey, LongBinding.entryToLong(cursor.getValue()));
+					}
+				}
+			}
+			Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (meta != null) {
+				ByteIterable ttlLastKey = meta.get(txn, TTL_LAST_KEY);
+				if (ttlLastKey != null) {
+					lastKey = Math.max(lastKey, LongBinding.entryToLong(ttlLastKey));
+				}
+			}
+			return lastKey;
+		});
+	}
+
+	private long readEarliestExpiry() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store ttlIndex = this.env.openStore(ttlStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (ttlIndex != null) {
+				try (Cursor cursor = ttlIndex.openCursor(txn)) {
+					if (cursor.getNext()) {
+						return LongBinding.entryToLong(cursor.getKey().subIterable(0, 8));
+					}
+				}
+			}
+			return Long.MAX_VALUE;
+		});
+	}
+
+	/**
+	 * Returns the largest sequence id that auxiliary stores of a subclass still
+	 * reference, 0 if there is none. Called once from the constructor before the subclass
+	 * fields are initialized.
+	 */
+	long lastReservedKey(Transaction txn) {
+		return 0L;
+	}
 
-			long nextKey = 1L;
+	/**
+	 * Returns the last key of a store keyed by sequence id, 0 if the store is empty or
+	 * does not exist.
+	 */
+	long lastKey(Transaction txn, String name) {
+		Store store = this.env.openStore(name, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		if (store != null) {
 			try (Cursor cursor = store.openCursor(txn)) {
 				if (cursor.getLast()) {
-					nextKey = LongBinding.entryToLong(cursor.getKey()) + 1L;
+					return LongBinding.entryToLong(cursor.getKey());
 				}
 			}
+		}
+		return 0L;
+	}
+
+	@Override
+	public boolean offer(T e) {
+		offerInternal(e);
+		return true;
+	}
+
+	/**
+	 * Inserts the element at the tail of the queue. Sequence ids are not reused while the
+	 * queue is open, but after a restart the sequence continues after the largest id
+	 * still in the queue.
+	 * @return the sequence id the element is stored under
+	 */
+	public long offerWithId(T e) {
+		return offerInternal(e);
+	}
+
+	private long offerInternal(T e) {
+		Objects.requireNonNull(e);
+		ByteIterable value = toEntry(e);
+
+		long[] key = new long[1];
+		boolean headChanged;
+		if (this.writeMode == XodusQueueOptions.WriteMode.OPTIMISTIC) {
+			key[0] = this.sequence.incrementAndGet();
+			ByteIterable keyEntry = LongBinding.longToEntry(key[0]);
+			headChanged = this.env.computeInTransaction(txn -> {
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				boolean newHead = precedesHead(txn, store, key[0]);
+				store.put(txn, keyEntry, value);
+				addStoredBytes(txn, entryBytes(keyEntry, value));
+				return evictOnAppend(txn, store) > 0 || newHead;
+			});
+		}
+		else {
+			headChanged = this.env.computeInExclusiveTransaction(txn -> {
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				boolean empty = store.count(txn) == 0;
+				key[0] = this.sequence.incrementAndGet();
+				ByteIterable keyEntry = LongBinding.longToEntry(key[0]);
+				store.putRight(txn, keyEntry, value);
+				addStoredBytes(txn, entryBytes(keyEntry, value));
+				return evictOnAppend(txn, store) > 0 || empty;
+			});
+		}
 
-			store.putRight(txn, LongBinding.longToEntry(nextKey), this.serializer.toEntry(e));
+		if (headChanged) {
+			invalidateHead();
+		}
+		return key[0];
+	}
+
+	/**
+	 * Inserts the element at the tail of the queue with a time to live. Once the time to
+	 * live has passed, polls skip the element and a background task removes it, see
+	 * {@link XodusQueueOptions#withExpirySweepInterval(Duration)}. Other read methods
+	 * return the element until it is removed.
+	 */
+	public boolean offer(T e, Duration ttl) {
+		Objects.requireNonNull(e);
+		Objects.requireNonNull(ttl);
+		ByteIterable value = toEntry(e);
+		long expiry = deadline(System.currentTimeMillis(), ttl);
+
+		boolean wasEmpty = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			boolean empty = store.count(txn) == 0;
+			long key = this.sequence.incrementAndGet();
+			ByteIterable keyEntry = LongBinding.longToEntry(key);
+			store.putRight(txn, keyEntry, value);
+			addStoredBytes(txn, entryBytes(keyEntry, value));
+
+			Store ttlIndex = this.env.openStore(ttlStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			ttlIndex.put(txn,
+					new CompoundByteIterable(new ByteIterable[] { LongBinding.longToEntry(expiry), keyEntry }),
+					ByteIterable.EMPTY);
+			Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			meta.put(txn, TTL_LAST_KEY, keyEntry);
+			if (expiry < this.earliestExpiry) {
+				this.earliestExpiry = expiry;
+			}
+			return evictOnAppend(txn, store) > 0 || empty;
 		});
 
+		if (wasEmpty) {
+			invalidateHead();
+		}
+		startExpirySweeper();
 		return true;
 	}
 
+	/**
+	 * Removes all elements whose time to live has passed. The expiry index is ordered by
+	 * expiry time, so the cost depends on the number of expired elements and not on the
+	 * size of the queue.
+	 * @return the number of removed elements
+	 */
+	public long sweepExpired() {
+		return removeExpired();
+	}
+
+	/**
+	 * Removes the expired elements if the earliest expiry has passed. Costs a volatile
+	 * read otherwise.
+	 * @return the number of removed elements
+	 */
+	long sweepExpiredIfDue() {
+		if (System.currentTimeMillis() < this.earliestExpiry) {
+			return 0L;
+		}
+		return removeExpired();
+	}
+
+	private long removeExpired() {
+		long now = System.currentTimeMillis();
+		long removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store ttlIndex = this.env.openStore(ttlStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (ttlIndex == null) {
+				this.earliestExpiry = Long.MAX_VALUE;
+				return 0L;
+			}
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+
+			long count = 0L;
+			long bytes = 0L;
+			long next = Long.MAX_VALUE;
+			try (Cursor cursor = ttlIndex.openCursor(txn)) {
+				while (cursor.getNext()) {
+					ByteIterable indexKey = cursor.getKey();
+					long expiry = LongBinding.entryToLong(indexKey.subIterable(0, 8));
+					if (expiry > now) {
+						next = expiry;
+						break;
+					}
+					// the element may already be gone, ids are never reused
+					if (store != null) {
+						ByteIterable key = new ArrayByteIterable(indexKey.subIterable(8, 8));
+						ByteIterable value = store.get(txn, key);
+						if (value != null) {
+							bytes += entryBytes(key, value);
+							store.delete(txn, key);
+							count++;
+						}
+					}
+					cursor.deleteCurrent();
+				}
+			}
+			addStoredBytes(txn, -bytes);
+			this.earliestExpiry = next;
+			return count;
+		});
+
+		if (removed > 0) {
+			invalidateHead();
+		}
+		return removed;
+	}
+
+	private void startExpirySweeper() {
+		long interval = this.options.getExpirySweepInterval().toMillis();
+		if (interval <= 0 || this.expiryExecutor != null) {
+			return;
+		}
+		synchronized (this) {
+			if (this.expiryExecutor == null) {
+				ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread thread = new Thread(r, "xodus-queue-expiry");
+					thread.setDaemon(true);
+					return thread;
+				});
+				executor.scheduleWithFixedDelay(() -> {
+					try {
+						if (System.currentTimeMillis() >= this.earliestExpiry) {
+							sweepExpired();
+						}
+					}
+					catch (RuntimeException e) {
+						// keep the schedule alive, the next run tries again
+					}
+				}, interval, interval, TimeUnit.MILLISECONDS);
+				this.expiryExecutor = executor;
+			}
+		}
+	}
+
+	/**
+	 * Inserts the element at the tail of the queue unless an element with the same
+	 * deduplication key was inserted within the deduplication window of the
+	 * {@link XodusQueueOptions}. The key lookup, the append and the key registration run
+	 * in one exclusive transaction, each as an index seek.
+	 * @return true if the element was inserted, false if it is a duplicate
+	 */
+	public boolean offerIfAbsent(String dedupKey, T e) {
+		Objects.requireNonNull(dedupKey);
+		Objects.requireNonNull(e);
+		ByteIterable value = toEntry(e);
+
+		long now = System.currentTimeMillis();
+		long expiry = deadline(now, this.options.getDeduplicationWindow());
+		ByteIterable dedupEntry = StringBinding.stringToEntry(dedupKey);
+		Boolean wasEmpty = this.env.computeInExclusiveTransaction(txn -> {
+			Store dedup = this.env.openStore(this.storeName + "#dedup", StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store expiries = this.env.openStore(this.storeName + "#dedupexp", StoreConfig.WITHOUT_DUPLICATES, txn);
+			removeExpiredDedupKeys(txn, dedup, expiries, now);
+
+			ByteIterable existing = dedup.get(txn, dedupEntry);
+			if (existing != null) {
+				long existingExpiry = LongBinding.entryToLong(existing.subIterable(0, 8));
+				if (existingExpiry > now) {
+					return null;
+				}
+				expiries.delete(txn, dedupExpiryKey(existingExpiry, dedupEntry));
+			}
+
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			boolean empty = store.count(txn) == 0;
+			long key = this.sequence.incrementAndGet();
+			ByteIterable keyEntry = LongBinding.longToEntry(key);
+			store.putRight(txn, keyEntry, value);
+			addStoredBytes(txn, entryBytes(keyEntry, value));
+
+			dedup.put(txn, dedupEntry, new CompoundByteIterable(
+					new ByteIterable[] { LongBinding.longToEntry(expiry), LongBinding.longToEntry(key) }));
+			expiries.put(txn, dedupExpiryKey(expiry, dedupEntry), LongBinding.longToEntry(key));
+			return evictOnAppend(txn, store) > 0 || empty;
+		});
+
+		if (wasEmpty == null) {
+			return false;
+		}
+		if (wasEmpty) {
+			invalidateHead();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a bounded number of expired deduplication keys, so the cleanup cost is
+	 * spread over the inserts.
+	 */
+	private static void removeExpiredDedupKeys(Transaction txn, Store dedup, Store expiries, long now) {
+		int removed = 0;
+		try (Cursor cursor = expiries.openCursor(txn)) {
+			while (removed < DEDUP_CLEANUP_BATCH && cursor.getNext()) {
+				ByteIterable key = cursor.getKey();
+				if (LongBinding.entryToLong(key.subIterable(0, 8)) > now) {
+					break;
+				}
+				dedup.delete(txn, key.subIterable(8, key.getLength() - 8));
+				cursor.deleteCurrent();
+				removed++;
+			}
+		}
+	}
+
+	private static ByteIterable dedupExpiryKey(long expiry, ByteIterable dedupKey) {
+		return new CompoundByteIterable(new ByteIterable[] { LongBinding.longToEntry(expiry), dedupKey });
+	}
+
+	/**
+	 * Called inside every append transaction after the new elements are written.
+	 * Subclasses can remove elements from the head here, for example with
+	 * {@link #discardHead(Transaction, Store, long)}. The store must not be used after
+	 * that call.
+	 * @return the number of removed elements
+	 */
+	protected long evictOnAppend(Transaction txn, Store store) {
+		return 0L;
+	}
+
+	/**
+	 * Returns the element stored under the sequence id or null if there is no such
+	 * element.
+	 */
+	public T getById(long sequenceId) {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				ByteIterable value = store.get(txn, LongBinding.longToEntry(sequenceId));
+				if (value != null) {
+					return fromEntry(value);
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Removes the element stored under the sequence id.
+	 * @return true if an element was removed
+	 */
+	public boolean removeById(long sequenceId) {
+		boolean removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				ByteIterable key = LongBinding.longToEntry(sequenceId);
+				ByteIterable value = store.get(txn, key);
+				if (value != null) {
+					store.delete(txn, key);
+					addStoredBytes(txn, -entryBytes(key, value));
+					return true;
+				}
+			}
+			return false;
+		});
+
+		if (removed) {
+			invalidateHead();
+		}
+		return removed;
+	}
+
+	/**
+	 * Replaces the element stored under the sequence id. The element keeps its position
+	 * in the queue.
+	 * @return true if an element was replaced, false if there is no element with this
+	 * sequence id
+	 */
+	public boolean replaceById(long sequenceId, T e) {
+		Objects.requireNonNull(e);
+
+		boolean replaced = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store != null) {
+				ByteIterable key = LongBinding.longToEntry(sequenceId);
+				ByteIterable old = store.get(txn, key);
+				if (old != null) {
+					ByteIterable value = withEnqueueTimeOf(toEntry(e), old);
+					store.put(txn, key, value);
+					addStoredBytes(txn, value.getLength() - old.getLength());
+					return true;
+				}
+			}
+			return false;
+		});
+
+		if (replaced) {
+			invalidateHead();
+		}
+		return replaced;
+	}
+
 	@Override
 	public boolean addAll(Collection<? extends T> c) {
 		Objects.requireNonNull(c);
@@ -135,310 +836,824 @@ public class XodusQueue<T> extends AbstractQueue<T> implements AutoCloseable {
 			throw new IllegalArgumentException();
 		}
 
-		return this.env.computeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn);
+		return addBatch(c.iterator(), Long.MAX_VALUE) > 0;
+	}
 
-			boolean modified = false;
-			long last = 0L;
-			// determine starting key by reading last key in store
-			try (Cursor cursor = store.openCursor(txn)) {
-				if (cursor.getLast()) {
-					last = LongBinding.entryToLong(cursor.getKey());
+	/**
+	 * Appends up to {@code maxElements} elements taken from the iterator in one
+	 * transaction.
+	 * @return the number of appended elements
+	 */
+	protected long addBatch(Iterator<? extends T> elements, long maxElements) {
+		return addBatch(elements, maxElements, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns true if an element stored under {@code key} becomes the head of the queue.
+	 * In optimistic mode keys are allocated before the transaction, so a writer that
+	 * commits late can insert in front of elements that are already visible.
+	 */
+	private static boolean precedesHead(Transaction txn, Store store, long key) {
+		try (Cursor cursor = store.openCursor(txn)) {
+			return !cursor.getNext() || LongBinding.entryToLong(cursor.getKey()) > key;
+		}
+	}
+
+	/**
+	 * Appends elements taken from the iterator in one transaction until
+	 * {@code maxElements} elements are appended or the appended keys and values reach
+	 * {@code maxBytes}. The element that reaches the byte limit is appended.
+	 * @return the number of appended elements
+	 */
+	long addBatch(Iterator<? extends T> elements, long maxElements, long maxBytes) {
+		if (this.writeMode == XodusQueueOptions.WriteMode.OPTIMISTIC) {
+			// the transaction may run more than once, so the elements are serialized and
+			// keyed up front
+			List<ByteIterable> values = new ArrayList<>();
+			long bytes = 0L;
+			while (values.size() < maxElements && bytes < maxBytes && elements.hasNext()) {
+				T e = elements.next();
+				Objects.requireNonNull(e);
+				ByteIterable value = toEntry(e);
+				values.add(value);
+				bytes += Long.BYTES + value.getLength();
+			}
+			long batchBytes = bytes;
+			if (values.isEmpty()) {
+				return 0L;
+			}
+
+			long firstKey = this.sequence.getAndAdd(values.size()) + 1L;
+			boolean headChanged = this.env.computeInTransaction(txn -> {
+				Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				boolean newHead = precedesHead(txn, store, firstKey);
+				for (int i = 0; i < values.size(); i++) {
+					store.put(txn, LongBinding.longToEntry(firstKey + i), values.get(i));
 				}
+				addStoredBytes(txn, batchBytes);
+				return evictOnAppend(txn, store) > 0 || newHead;
+			});
+
+			if (headChanged) {
+				invalidateHead();
 			}
+			return values.size();
+		}
+
+		boolean[] headChanged = new boolean[1];
+		long added = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			headChanged[0] = store.count(txn) == 0;
 
-			for (T e : c) {
+			long count = 0L;
+			long bytes = 0L;
+			while (count < maxElements && bytes < maxBytes && elements.hasNext()) {
+				T e = elements.next();
 				Objects.requireNonNull(e);
-				last++;
-				store.putRight(txn, LongBinding.longToEntry(last), this.serializer.toEntry(e));
-				modified = true;
+				ByteIterable key = LongBinding.longToEntry(this.sequence.incrementAndGet());
+				ByteIterable value = toEntry(e);
+				store.putRight(txn, key, value);
+				bytes += entryBytes(key, value);
+				count++;
 			}
-
-			return modified;
+			addStoredBytes(txn, bytes);
+			if (count > 0 && evictOnAppend(txn, store) > 0) {
+				headChanged[0] = true;
+			}
+			return count;
 		});
+
+		if (added > 0 && headChanged[0]) {
+			invalidateHead();
+		}
+		return added;
 	}
 
+	/**
+	 * Retrieves and removes the head of the queue. Elements whose time to live has passed
+	 * are removed first.
+	 */
 	@Override
 	public T poll() {
-		return this.env.computeInExclusiveTransaction(pollComputable(true));
+		sweepExpiredIfDue();
+		return super.poll();
 	}
 
+	/**
+	 * Returns the head of the queue. The deserialized head is cached until the head
+	 * changes, so repeated calls return the same instance without touching the store.
+	 */
 	@Override
 	public T peek() {
-		return this.env.computeInReadonlyTransaction(pollComputable(false));
+		CachedHead<T> cached = this.cachedHead.get();
+		if (cached.loaded) {
+			return cached.element;
+		}
+
+		T head = super.peek();
+		this.cachedHead.compareAndSet(cached, new CachedHead<>(true, head));
+		return head;
+	}
+
+	@Override
+	void invalidateHead() {
+		this.cachedHead.set(new CachedHead<>(false, null));
 	}
 
-	private TransactionalComputable<T> pollComputable(final boolean remove) {
-		return txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+	@Override
+	public void close() {
+		if (this.retentionExecutor != null) {
+			this.retentionExecutor.shutdownNow();
+		}
+		synchronized (this) {
+			if (this.expiryExecutor != null) {
+				this.expiryExecutor.shutdownNow();
+			}
+		}
+		super.close();
+	}
+
+	/**
+	 * Reads up to {@code limit} elements starting with the first element whose sequence
+	 * id is greater than or equal to {@code fromSequenceId}, without removing them.
+	 */
+	public XodusQueuePage<T> page(long fromSequenceId, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be greater than zero");
+		}
+
+		return this.env.computeInReadonlyTransaction(txn -> {
+			List<XodusQueueEntry<T>> entries = new ArrayList<>(Math.min(limit, 1024));
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
 				try (Cursor cursor = store.openCursor(txn)) {
-					if (cursor.getNext()) {
-						ByteIterable value = cursor.getValue();
-						if (remove) {
-							cursor.deleteCurrent();
+					if (cursor.getSearchKeyRange(LongBinding.longToEntry(fromSequenceId)) != null) {
+						do {
+							if (entries.size() == limit) {
+								return new XodusQueuePage<>(entries, LongBinding.entryToLong(cursor.getKey()));
+							}
+							entries.add(new XodusQueueEntry<>(LongBinding.entryToLong(cursor.getKey()),
+									fromEntry(cursor.getValue())));
 						}
-
-						return this.serializer.fromEntry(value);
+						while (cursor.getNext());
 					}
 				}
 			}
-			return null;
-		};
+			return new XodusQueuePage<>(entries, -1L);
+		});
 	}
 
 	@Override
-	public int size() {
-		return (int) sizeLong();
+	public void clear() {
+		this.env.executeInExclusiveTransaction(this::truncate);
+		invalidateHead();
 	}
 
-	public long sizeLong() {
-		return this.env.computeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+	/**
+	 * Removes up to {@code n} elements from the head of the queue without deserializing
+	 * them.
+	 * @return the number of removed elements
+	 */
+	public long discardHead(long n) {
+		if (n <= 0) {
+			return 0L;
+		}
+
+		long removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
-				return store.count(txn);
+				return discardHead(txn, store, n);
 			}
 			return 0L;
 		});
-	}
 
-	@Override
-	public void close() {
-		if (this.env != null) {
-			this.env.close();
+		if (removed > 0) {
+			invalidateHead();
 		}
+		return removed;
 	}
 
-	@Override
-	public boolean isEmpty() {
-		return sizeLong() == 0;
-	}
+	/**
+	 * Removes elements from the head of the queue until at most {@code keepLast} elements
+	 * are left.
+	 * @return the number of removed elements
+	 */
+	public long trimTo(long keepLast) {
+		if (keepLast < 0) {
+			throw new IllegalArgumentException("keepLast must not be negative");
+		}
 
-	@Override
-	public boolean contains(Object o) {
-		return this.env.computeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		long removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
-				return containsInternal(o, txn, store);
+				long count = store.count(txn);
+				if (count > keepLast) {
+					return discardHead(txn, store, count - keepLast);
+				}
 			}
-			return false;
+			return 0L;
 		});
+
+		if (removed > 0) {
+			invalidateHead();
+		}
+		return removed;
 	}
 
-	private boolean containsInternal(Object o, Transaction txn, Store store) {
+	/**
+	 * Removes up to {@code n} elements from the head within the given transaction. The
+	 * store may be truncated and reopened, so the passed store must not be used
+	 * afterwards.
+	 * @return the number of removed elements
+	 */
+	protected final long discardHead(Transaction txn, Store store, long n) {
+		long count = store.count(txn);
+		if (n >= count) {
+			truncate(txn);
+			return count;
+		}
+
+		long keep = count - n;
+		if (keep < n && keep <= REWRITE_TAIL_LIMIT) {
+			// Xodus has no range delete. When only a small tail survives it is cheaper
+			// to copy the tail aside, truncate the store and write the tail back under
+			// its original keys than to delete the head entry by entry.
+			List<ByteIterable> keys = new ArrayList<>((int) keep);
+			List<ByteIterable> values = new ArrayList<>((int) keep);
+			long tailBytes = 0L;
+			try (Cursor cursor = store.openCursor(txn)) {
+				if (cursor.getLast()) {
+					do {
+						keys.add(new ArrayByteIterable(cursor.getKey()));
+						values.add(new ArrayByteIterable(cursor.getValue()));
+						tailBytes += entryBytes(cursor.getKey(), cursor.getValue());
+					}
+					while (keys.size() < keep && tailBytes <= REWRITE_TAIL_BYTES_LIMIT && cursor.getPrev());
+				}
+			}
+
+			if (tailBytes <= REWRITE_TAIL_BYTES_LIMIT) {
+				this.env.truncateStore(this.storeName, txn);
+				Store truncated = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+				for (int i = keys.size() - 1; i >= 0; i--) {
+					truncated.putRight(txn, keys.get(i), values.get(i));
+				}
+				setStoredBytes(txn, tailBytes);
+				return n;
+			}
+			// the tail is too large to hold on the heap
+		}
+
+		long removed = 0L;
+		long bytes = 0L;
 		try (Cursor cursor = store.openCursor(txn)) {
-			while (cursor.getNext()) {
-				T e = this.serializer.fromEntry(cursor.getValue());
-				if (e.equals(o)) {
-					return true;
+			while (removed < n && cursor.getNext()) {
+				if (this.byteAccounting) {
+					bytes += entryBytes(cursor.getKey(), cursor.getValue());
 				}
+				cursor.deleteCurrent();
+				removed++;
 			}
 		}
-		return false;
+		addStoredBytes(txn, -bytes);
+		return removed;
 	}
 
-	@Override
-	public Iterator<T> iterator() {
-		// Create a snapshot of current elements to provide a fail-safe iterator
-		List<T> snapshot = new ArrayList<>();
-		this.env.executeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
-			if (store != null) {
+	/**
+	 * Removes all elements within the given transaction. The time index is truncated as
+	 * well, its entries only describe keys that are gone now.
+	 */
+	private void truncate(Transaction txn) {
+		this.env.truncateStore(this.storeName, txn);
+		if (this.env.storeExists(timeIndexStoreName(), txn)) {
+			this.env.truncateStore(timeIndexStoreName(), txn);
+		}
+		setStoredBytes(txn, 0L);
+	}
+
+	/**
+	 * Drops elements from the head until the queue satisfies the retention limits of its
+	 * {@link XodusQueueOptions}, then lets Xodus reclaim the freed log space. Called
+	 * periodically by a background task unless the retention interval is zero.
+	 * <p>
+	 * The elements to drop are determined in a read-only transaction, so producers are
+	 * only blocked while the dropped elements are removed.
+	 * @return the number of dropped elements
+	 */
+	public long applyRetention() {
+		if (!this.options.hasRetention()) {
+			return 0L;
+		}
+
+		long now = System.currentTimeMillis();
+		Duration maxAge = this.options.getRetentionMaxAge();
+		long cutoff = maxAge != null ? now - Math.min(deadline(0L, maxAge), now) : Long.MIN_VALUE;
+		long lastDroppedKey = this.env.computeInReadonlyTransaction(txn -> retentionBoundary(txn, cutoff));
+
+		long removed = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (store == null) {
+				return 0L;
+			}
+
+			long lastKey = 0L;
+			if (maxAge != null) {
 				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext()) {
-						ByteIterable value = cursor.getValue();
-						T e = this.serializer.fromEntry(value);
-						snapshot.add(e);
+					if (cursor.getLast()) {
+						lastKey = LongBinding.entryToLong(cursor.getKey());
 					}
 				}
 			}
+			long dropped = lastDroppedKey > 0L ? discardThrough(txn, store, lastDroppedKey) : 0L;
+			if (maxAge != null) {
+				recordRetentionRun(txn, now, cutoff, lastKey);
+			}
+			return dropped;
 		});
-		return Collections.unmodifiableList(snapshot).iterator();
+
+		if (removed > 0) {
+			invalidateHead();
+			this.env.gc();
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the largest key that violates a retention limit, 0 if there is none. The
+	 * count and byte limits walk only the elements that are dropped, the age limit seeks
+	 * the last retention run recorded at or before the cutoff.
+	 */
+	private long retentionBoundary(Transaction txn, long cutoff) {
+		Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		if (store == null) {
+			return 0L;
+		}
+
+		long boundary = 0L;
+		long dropCount = Math.max(0L, store.count(txn) - this.options.getRetentionMaxElements());
+		long dropBytes = 0L;
+		if (this.options.getRetentionMaxBytes() != Long.MAX_VALUE) {
+			dropBytes = Math.max(0L, storedBytes(txn) - this.options.getRetentionMaxBytes());
+		}
+		if (dropCount > 0 || dropBytes > 0) {
+			long n = 0L;
+			long bytes = 0L;
+			try (Cursor cursor = store.openCursor(txn)) {
+				while ((n < dropCount || bytes < dropBytes) && cursor.getNext()) {
+					n++;
+					bytes += entryBytes(cursor.getKey(), cursor.getValue());
+					boundary = LongBinding.entryToLong(cursor.getKey());
+				}
+			}
+		}
+
+		if (cutoff != Long.MIN_VALUE) {
+			Store timeIndex = this.env.openStore(timeIndexStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (timeIndex != null) {
+				try (Cursor cursor = timeIndex.openCursor(txn)) {
+					// all keys up to the last key recorded at or before the cutoff are
+					// old
+					// enough
+					boolean found = cursor.getSearchKeyRange(LongBinding.longToEntry(cutoff + 1)) != null
+							? cursor.getPrev() : cursor.getLast();
+					if (found) {
+						boundary = Math.max(boundary, LongBinding.entryToLong(cursor.getValue()));
+					}
+				}
+			}
+		}
+		return boundary;
+	}
+
+	/**
+	 * Removes the head elements with keys up to and including {@code lastKey}. When only
+	 * a short tail survives, {@link #discardHead(Transaction, Store, long)} can rewrite
+	 * it instead of deleting the head entry by entry.
+	 * @return the number of removed elements
+	 */
+	private long discardThrough(Transaction txn, Store store, long lastKey) {
+		long keep = 0L;
+		try (Cursor cursor = store.openCursor(txn)) {
+			boolean more = cursor.getLast();
+			while (more && keep <= REWRITE_TAIL_LIMIT && LongBinding.entryToLong(cursor.getKey()) > lastKey) {
+				keep++;
+				more = cursor.getPrev();
+			}
+		}
+		if (keep <= REWRITE_TAIL_LIMIT) {
+			long n = store.count(txn) - keep;
+			return n > 0 ? discardHead(txn, store, n) : 0L;
+		}
+
+		long removed = 0L;
+		long bytes = 0L;
+		try (Cursor cursor = store.openCursor(txn)) {
+			while (cursor.getNext() && LongBinding.entryToLong(cursor.getKey()) <= lastKey) {
+				if (this.byteAccounting) {
+					bytes += entryBytes(cursor.getKey(), cursor.getValue());
+				}
+				cursor.deleteCurrent();
+				removed++;
+			}
+		}
+		addStoredBytes(txn, -bytes);
+		return removed;
+	}
+
+	/**
+	 * Records the last key of the queue before this run under the current time in the
+	 * time index. The index holds one entry per retention run. Entries at or before the
+	 * cutoff are removed because the elements they cover were dropped by this run.
+	 */
+	private void recordRetentionRun(Transaction txn, long now, long cutoff, long lastKey) {
+		Store timeIndex = this.env.openStore(timeIndexStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+		try (Cursor cursor = timeIndex.openCursor(txn)) {
+			while (cursor.getNext() && LongBinding.entryToLong(cursor.getKey()) <= cutoff) {
+				cursor.deleteCurrent();
+			}
+		}
+		timeIndex.put(txn, LongBinding.longToEntry(now), LongBinding.longToEntry(lastKey));
 	}
 
 	@Override
-	public Object[] toArray() {
-		return this.env.computeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+	protected int drainTo(Collection<? super T> c, int maxElements) {
+		Objects.requireNonNull(c);
+
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		if (maxElements <= 0) {
+			return 0;
+		}
+
+		sweepExpiredIfDue();
+		int drained = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
-				Object[] r = new Object[(int) store.count(txn)];
-				int ix = 0;
+				int currentCounter = 0;
+				long now = System.currentTimeMillis();
 				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext()) {
-						ByteIterable value = cursor.getValue();
-						T e = this.serializer.fromEntry(value);
-						r[ix++] = e;
+					while (currentCounter < maxElements && cursor.getNext()) {
+						recordDequeue(cursor.getValue(), now);
+						T e = fromEntry(cursor.getValue());
+						c.add(e);
+						currentCounter++;
 					}
 				}
-				return r;
+				if (currentCounter > 0) {
+					discardHead(txn, store, currentCounter);
+				}
+				return currentCounter;
 			}
-			return new Object[0];
+			return 0;
 		});
+
+		if (drained > 0) {
+			invalidateHead();
+		}
+		return drained;
 	}
 
-	@SuppressWarnings({ "unchecked", "hiding" })
-	@Override
-	public <T> T[] toArray(T[] a) {
-		return this.env.computeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
+	/**
+	 * Removes up to {@code maxElements} elements from the head of the queue in one
+	 * transaction. Keeps copies of their keys and stored values, so
+	 * {@link #restoreEntries(DrainedEntries)} can put elements that could not be handed
+	 * over back unchanged.
+	 */
+	DrainedEntries<T> drainEntries(int maxElements) {
+		DrainedEntries<T> drained = this.env.computeInExclusiveTransaction(txn -> {
+			DrainedEntries<T> entries = new DrainedEntries<>(Math.min(maxElements, 1024));
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
-				int size = (int) store.count(txn);
-				T[] r = a.length >= size ? a
-						: (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
-				int ix = 0;
+				long now = System.currentTimeMillis();
 				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext()) {
+					while (entries.size() < maxElements && cursor.getNext()) {
 						ByteIterable value = cursor.getValue();
-						r[ix++] = (T) this.serializer.fromEntry(value);
+						recordDequeue(value, now);
+						entries.add(new ArrayByteIterable(cursor.getKey()), new ArrayByteIterable(value),
+								fromEntry(value));
 					}
 				}
-				if (r.length > ix) {
-					r[ix] = null;
+				if (entries.size() > 0) {
+					discardHead(txn, store, entries.size());
 				}
-				return r;
 			}
-			if (a.length > 0) {
-				a[0] = null;
+			return entries;
+		});
+
+		if (drained.size() > 0) {
+			invalidateHead();
+		}
+		return drained;
+	}
+
+	/**
+	 * Writes entries removed by {@link #drainEntries(int)} back under their original
+	 * keys, like {@link #requeueExpiredLeases()} does with expired leases. They keep
+	 * their position, sequence id, enqueue time and time to live.
+	 * @return the number of restored elements
+	 */
+	int restoreEntries(DrainedEntries<T> entries) {
+		if (entries.size() == 0) {
+			return 0;
+		}
+		this.env.executeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			long bytes = 0L;
+			for (int i = 0; i < entries.size(); i++) {
+				store.put(txn, entries.keys.get(i), entries.values.get(i));
+				bytes += entryBytes(entries.keys.get(i), entries.values.get(i));
 			}
-			return a;
+			addStoredBytes(txn, bytes);
 		});
+		invalidateHead();
+		return entries.size();
 	}
 
-	@Override
-	public boolean remove(Object o) {
-		if (o == null) {
-			return false;
+	/**
+	 * Moves up to {@code maxElements} elements from the head of the queue into the
+	 * in-flight store. The elements stay there until they are acknowledged with
+	 * {@link #ack(long...)}. When the visibility timeout passes first, they return to the
+	 * queue under their original sequence id. Expired leases are returned before the new
+	 * elements are leased.
+	 * @return the leased elements with the sequence ids to acknowledge them
+	 */
+	public List<XodusQueueEntry<T>> lease(int maxElements, Duration visibility) {
+		Objects.requireNonNull(visibility);
+		if (maxElements <= 0) {
+			return Collections.emptyList();
 		}
-		return this.env.computeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 
-			if (store != null) {
-				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext()) {
-						T e = this.serializer.fromEntry(cursor.getValue());
-						if (o.equals(e)) {
-							cursor.deleteCurrent();
-							return true;
-						}
-					}
+		sweepExpiredIfDue();
+		long now = System.currentTimeMillis();
+		ByteIterable deadline = LongBinding.longToEntry(deadline(now, visibility));
+		List<XodusQueueEntry<T>> leased = this.env.computeInExclusiveTransaction(txn -> {
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store inFlight = this.env.openStore(inFlightStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store deadlines = this.env.openStore(leaseDeadlineStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			requeueExpiredLeases(txn, store, inFlight, deadlines, now);
+
+			List<XodusQueueEntry<T>> entries = new ArrayList<>();
+			long bytes = 0L;
+			try (Cursor cursor = store.openCursor(txn)) {
+				while (entries.size() < maxElements && cursor.getNext()) {
+					ByteIterable key = cursor.getKey();
+					ByteIterable value = cursor.getValue();
+					entries.add(new XodusQueueEntry<>(LongBinding.entryToLong(key), fromEntry(value)));
+					recordDequeue(value, now);
+					inFlight.put(txn, key, new CompoundByteIterable(new ByteIterable[] { deadline, value }));
+					deadlines.put(txn, leaseDeadlineKey(deadline, key), ByteIterable.EMPTY);
+					bytes += entryBytes(key, value);
+					cursor.deleteCurrent();
 				}
 			}
-			return false;
+			addStoredBytes(txn, -bytes);
+			return entries;
 		});
+
+		// requeued leases may have changed the head as well
+		invalidateHead();
+		return leased;
 	}
 
-	@Override
-	public boolean containsAll(Collection<?> c) {
-		Objects.requireNonNull(c);
-		if (c.isEmpty()) {
-			return true;
+	/**
+	 * Removes the leased elements with the given sequence ids from the in-flight store.
+	 * All ids are acknowledged in one transaction. Ids of leases that already expired and
+	 * returned to the queue are ignored.
+	 * @return the number of acknowledged elements
+	 */
+	public int ack(long... sequenceIds) {
+		if (sequenceIds.length == 0) {
+			return 0;
 		}
-		return this.env.computeInReadonlyTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
-			if (store != null) {
-				for (Object e : c) {
-					if (!containsInternal(e, txn, store)) {
-						return false;
+		return this.env.computeInExclusiveTransaction(txn -> {
+			Store inFlight = this.env.openStore(inFlightStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			int acked = 0;
+			if (inFlight != null) {
+				Store deadlines = this.env.openStore(leaseDeadlineStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+				for (long id : sequenceIds) {
+					ByteIterable key = LongBinding.longToEntry(id);
+					ByteIterable value = inFlight.get(txn, key);
+					if (value != null) {
+						deadlines.delete(txn, leaseDeadlineKey(value.subIterable(0, 8), key));
+						inFlight.delete(txn, key);
+						acked++;
 					}
 				}
-				return true;
 			}
-			return false;
+			return acked;
 		});
 	}
 
-	@Override
-	public boolean removeAll(Collection<?> c) {
-		Objects.requireNonNull(c);
+	/**
+	 * Returns all leases whose visibility timeout has passed to the queue. The elements
+	 * are stored under their original sequence id, so they are back at the head.
+	 * @return the number of returned elements
+	 */
+	public int requeueExpiredLeases() {
+		long now = System.currentTimeMillis();
+		int requeued = this.env.computeInExclusiveTransaction(txn -> {
+			Store inFlight = this.env.openStore(inFlightStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (inFlight == null) {
+				return 0;
+			}
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn);
+			Store deadlines = this.env.openStore(leaseDeadlineStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			return requeueExpiredLeases(txn, store, inFlight, deadlines, now);
+		});
 
-		// Optimize for empty collection - no need to iterate
-		if (c.isEmpty()) {
-			return false;
+		if (requeued > 0) {
+			invalidateHead();
 		}
+		return requeued;
+	}
 
-		return this.env.computeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
-			boolean modified = false;
-			if (store != null) {
-				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext()) {
-						T e = this.serializer.fromEntry(cursor.getValue());
-						if (c.contains(e)) {
-							cursor.deleteCurrent();
-							modified = true;
-						}
-					}
+	/**
+	 * Walks the deadline index up to {@code now}, so the cost depends on the number of
+	 * expired leases and not on the number of leased elements.
+	 */
+	private int requeueExpiredLeases(Transaction txn, Store store, Store inFlight, Store deadlines, long now) {
+		int requeued = 0;
+		long bytes = 0L;
+		try (Cursor cursor = deadlines.openCursor(txn)) {
+			while (cursor.getNext()) {
+				ByteIterable indexKey = cursor.getKey();
+				if (LongBinding.entryToLong(indexKey.subIterable(0, 8)) > now) {
+					break;
 				}
+				ByteIterable key = new ArrayByteIterable(indexKey.subIterable(8, 8));
+				ByteIterable value = inFlight.get(txn, key);
+				if (value != null) {
+					store.put(txn, key, value.subIterable(8, value.getLength() - 8));
+					bytes += key.getLength() + value.getLength() - 8;
+					inFlight.delete(txn, key);
+					requeued++;
+				}
+				cursor.deleteCurrent();
 			}
-			return modified;
-		});
+		}
+		addStoredBytes(txn, bytes);
+		return requeued;
 	}
 
-	@Override
-	public boolean retainAll(Collection<?> c) {
-		Objects.requireNonNull(c);
-
-		// Optimize for empty collection - clear everything
-		if (c.isEmpty()) {
-			if (!isEmpty()) {
-				clear();
-				return true;
+	/**
+	 * Returns the number of leased elements that are neither acknowledged nor returned to
+	 * the queue.
+	 */
+	public long inFlightCount() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Store inFlight = this.env.openStore(inFlightStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+			if (inFlight != null) {
+				return inFlight.count(txn);
 			}
-			return false;
-		}
+			return 0L;
+		});
+	}
 
-		return this.env.computeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
-			boolean modified = false;
+	/**
+	 * Starts counting the bytes of the stored keys and values. The counter lives in the
+	 * meta store and is updated in the same transaction as the store, so it survives
+	 * restarts and aborted transactions. Enabling scans the store once, because writes
+	 * made while the accounting was off are not counted.
+	 */
+	void enableByteAccounting() {
+		this.env.executeInExclusiveTransaction(txn -> {
+			long bytes = 0L;
+			Store store = this.env.openStore(this.storeName, StoreConfig.WITHOUT_DUPLICATES, txn, false);
 			if (store != null) {
 				try (Cursor cursor = store.openCursor(txn)) {
 					while (cursor.getNext()) {
-						T e = this.serializer.fromEntry(cursor.getValue());
-						if (!c.contains(e)) {
-							cursor.deleteCurrent();
-							modified = true;
-						}
+						bytes += entryBytes(cursor.getKey(), cursor.getValue());
 					}
 				}
 			}
-			return modified;
+			this.byteAccounting = true;
+			setStoredBytes(txn, bytes);
 		});
 	}
 
+	/**
+	 * Returns the bytes of the stored keys and values. Only maintained after
+	 * {@link #enableByteAccounting()}.
+	 */
+	long storedBytes() {
+		return this.env.computeInReadonlyTransaction(this::storedBytes);
+	}
+
+	private long storedBytes(Transaction txn) {
+		Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn, false);
+		if (meta != null) {
+			ByteIterable bytes = meta.get(txn, STORED_BYTES_KEY);
+			if (bytes != null) {
+				return LongBinding.entryToLong(bytes);
+			}
+		}
+		return 0L;
+	}
+
 	@Override
-	public void clear() {
-		this.env.executeInExclusiveTransaction(txn -> {
-			this.env.truncateStore(STORE_NAME, txn);
-		});
+	void addStoredBytes(Transaction txn, long delta) {
+		if (this.byteAccounting && delta != 0L) {
+			Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			ByteIterable bytes = meta.get(txn, STORED_BYTES_KEY);
+			long current = bytes != null ? LongBinding.entryToLong(bytes) : 0L;
+			meta.put(txn, STORED_BYTES_KEY, LongBinding.longToEntry(current + delta));
+		}
 	}
 
-	protected int drainTo(Collection<? super T> c, int maxElements) {
-		Objects.requireNonNull(c);
+	private void setStoredBytes(Transaction txn, long bytes) {
+		if (this.byteAccounting) {
+			Store meta = this.env.openStore(metaStoreName(), StoreConfig.WITHOUT_DUPLICATES, txn);
+			meta.put(txn, STORED_BYTES_KEY, LongBinding.longToEntry(bytes));
+		}
+	}
 
-		if (c == this) {
-			throw new IllegalArgumentException();
+	/**
+	 * Allocates the key for an append. Must be called inside the exclusive transaction
+	 * that appends the element.
+	 */
+	long nextSequence() {
+		return this.sequence.incrementAndGet();
+	}
+
+	private String inFlightStoreName() {
+		return this.storeName + "#inflight";
+	}
+
+	private String leaseDeadlineStoreName() {
+		return this.storeName + "#leasedeadlines";
+	}
+
+	private static ByteIterable leaseDeadlineKey(ByteIterable deadline, ByteIterable key) {
+		return new CompoundByteIterable(new ByteIterable[] { deadline, key });
+	}
+
+	private String timeIndexStoreName() {
+		return this.storeName + "#timeindex";
+	}
+
+	private String ttlStoreName() {
+		return this.storeName + "#ttl";
+	}
+
+	private String metaStoreName() {
+		return this.storeName + "#meta";
+	}
+
+	/**
+	 * Elements removed by {@link XodusQueue#drainEntries(int)} with their keys and stored
+	 * values.
+	 */
+	static final class DrainedEntries<T> {
+
+		final List<ByteIterable> keys;
+
+		final List<ByteIterable> values;
+
+		final List<T> elements;
+
+		DrainedEntries(int capacity) {
+			this(new ArrayList<>(capacity), new ArrayList<>(capacity), new ArrayList<>(capacity));
 		}
 
-		if (maxElements <= 0) {
-			return 0;
+		private DrainedEntries(List<ByteIterable> keys, List<ByteIterable> values, List<T> elements) {
+			this.keys = keys;
+			this.values = values;
+			this.elements = elements;
 		}
 
-		return this.env.computeInExclusiveTransaction(txn -> {
-			Store store = this.env.openStore(STORE_NAME, StoreConfig.WITHOUT_DUPLICATES, txn, false);
-			if (store != null) {
-				int currentCounter = 0;
-				try (Cursor cursor = store.openCursor(txn)) {
-					while (cursor.getNext() && currentCounter < maxElements) {
-						T e = this.serializer.fromEntry(cursor.getValue());
-						c.add(e);
-						cursor.deleteCurrent();
-						currentCounter++;
-					}
-				}
-				return currentCounter;
-			}
-			return 0;
-		});
+		void add(ByteIterable key, ByteIterable value, T element) {
+			this.keys.add(key);
+			this.values.add(value);
+			this.elements.add(element);
+		}
+
+		int size() {
+			return this.elements.size();
+		}
+
+		/**
+		 * Returns the entries from {@code fromIndex} to the end.
+		 */
+		DrainedEntries<T> from(int fromIndex) {
+			int n = size();
+			return new DrainedEntries<>(this.keys.subList(fromIndex, n), this.values.subList(fromIndex, n),
+					this.elements.subList(fromIndex, n));
+		}
+
+	}
+
+	private static final class CachedHead<T> {
+
+		final boolean loaded;
+
+		final T element;
+
+		CachedHead(boolean loaded, T element) {
+			this.loaded = loaded;
+			this.element = element;
+		}
 
 	}
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in milliseconds with power of two buckets. Bucket 0
+ * counts durations below one millisecond, bucket {@code i} durations from {@code 2^(i-1)}
+ * up to {@code 2^i - 1} milliseconds.
+ */
+public final class XodusQueueHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong totalMillis = new AtomicLong();
+
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	void record(long millis) {
+		long value = Math.max(0L, millis);
+		this.buckets.incrementAndGet(bucketOf(value));
+		this.count.incrementAndGet();
+		this.totalMillis.addAndGet(value);
+		this.maxMillis.accumulateAndGet(value, Math::max);
+	}
+
+	private static int bucketOf(long millis) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getTotalMillis() {
+		return this.totalMillis.get();
+	}
+
+	public long getMaxMillis() {
+		return this.maxMillis.get();
+	}
+
+	public double getMeanMillis() {
+		long n = this.count.get();
+		return n == 0 ? 0.0 : (double) this.totalMillis.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile between 0 and 100, the largest
+	 * duration of the bucket that contains it, but not more than the maximum.
+	 */
+	public long getPercentileMillis(double percentile) {
+		if (percentile < 0.0 || percentile > 100.0) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		long n = this.count.get();
+		if (n == 0) {
+			return 0L;
+		}
+
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				long upper = i == 0 ? 0L : (1L << Math.min(i, 62)) - 1;
+				return Math.min(upper, this.maxMillis.get());
+			}
+		}
+		return this.maxMillis.get();
+	}
+
+	/**
+	 * Returns a copy of the bucket counts.
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets.get(i);
+		}
+		return counts;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets.set(i, 0L);
+		}
+		this.count.set(0L);
+		this.totalMillis.set(0L);
+		this.maxMillis.set(0L);
+	}
+
+}
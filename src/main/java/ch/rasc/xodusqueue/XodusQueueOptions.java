@@ -0,0 +1,215 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Immutable set of options for {@link XodusQueue}. Start with {@link #defaults()} and
+ * derive modified copies with the {@code with} methods.
+ */
+public final class XodusQueueOptions {
+
+	public enum WriteMode {
+
+		/**
+		 * Appends run in exclusive Xodus transactions, so all writers are serialized and
+		 * elements are stored strictly in the order of the commits.
+		 */
+		EXCLUSIVE,
+
+		/**
+		 * Appends run in regular optimistic Xodus transactions that are retried on
+		 * conflict. Keys come from an in-memory sequence and elements are serialized
+		 * before the transaction starts. Producers that offer concurrently may see their
+		 * elements stored in a different order than the offer calls returned.
+		 */
+		OPTIMISTIC
+
+	}
+
+	private static final XodusQueueOptions DEFAULTS = new XodusQueueOptions(WriteMode.EXCLUSIVE, Long.MAX_VALUE,
+			Long.MAX_VALUE, null, Duration.ofSeconds(10), Duration.ofHours(1), Duration.ofSeconds(1), false);
+
+	private final WriteMode writeMode;
+
+	private final long retentionMaxElements;
+
+	private final long retentionMaxBytes;
+
+	private final Duration retentionMaxAge;
+
+	private final Duration retentionInterval;
+
+	private final Duration deduplicationWindow;
+
+	private final Duration expirySweepInterval;
+
+	private final boolean envelope;
+
+	private XodusQueueOptions(WriteMode writeMode, long retentionMaxElements, long retentionMaxBytes,
+			Duration retentionMaxAge, Duration retentionInterval, Duration deduplicationWindow,
+			Duration expirySweepInterval, boolean envelope) {
+		this.writeMode = writeMode;
+		this.retentionMaxElements = retentionMaxElements;
+		this.retentionMaxBytes = retentionMaxBytes;
+		this.retentionMaxAge = retentionMaxAge;
+		this.retentionInterval = retentionInterval;
+		this.deduplicationWindow = deduplicationWindow;
+		this.expirySweepInterval = expirySweepInterval;
+		this.envelope = envelope;
+	}
+
+	public static XodusQueueOptions defaults() {
+		return DEFAULTS;
+	}
+
+	public XodusQueueOptions withWriteMode(WriteMode mode) {
+		return new XodusQueueOptions(Objects.requireNonNull(mode), this.retentionMaxElements, this.retentionMaxBytes,
+				this.retentionMaxAge, this.retentionInterval, this.deduplicationWindow, this.expirySweepInterval,
+				this.envelope);
+	}
+
+	/**
+	 * Keeps at most this many elements. Older elements are dropped from the head.
+	 */
+	public XodusQueueOptions withRetentionMaxElements(long maxElements) {
+		if (maxElements < 0) {
+			throw new IllegalArgumentException("maxElements must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, maxElements, this.retentionMaxBytes, this.retentionMaxAge,
+				this.retentionInterval, this.deduplicationWindow, this.expirySweepInterval, this.envelope);
+	}
+
+	/**
+	 * Keeps at most this many bytes of keys and serialized elements. Older elements are
+	 * dropped from the head.
+	 */
+	public XodusQueueOptions withRetentionMaxBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, maxBytes, this.retentionMaxAge,
+				this.retentionInterval, this.deduplicationWindow, this.expirySweepInterval, this.envelope);
+	}
+
+	/**
+	 * Drops elements that are older than the given age. The age is tracked with a
+	 * timestamp per retention run, so elements are dropped up to one
+	 * {@link #withRetentionInterval(Duration) retention interval} late.
+	 */
+	public XodusQueueOptions withRetentionMaxAge(Duration maxAge) {
+		if (maxAge != null && maxAge.isNegative()) {
+			throw new IllegalArgumentException("maxAge must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, this.retentionMaxBytes, maxAge,
+				this.retentionInterval, this.deduplicationWindow, this.expirySweepInterval, this.envelope);
+	}
+
+	/**
+	 * Delay between two runs of the background retention task. {@link Duration#ZERO}
+	 * disables the task, retention is then only applied by
+	 * {@link XodusQueue#applyRetention()}.
+	 */
+	public XodusQueueOptions withRetentionInterval(Duration interval) {
+		Objects.requireNonNull(interval);
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("interval must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, this.retentionMaxBytes,
+				this.retentionMaxAge, interval, this.deduplicationWindow, this.expirySweepInterval, this.envelope);
+	}
+
+	/**
+	 * How long {@link XodusQueue#offerIfAbsent(String, Object)} remembers a deduplication
+	 * key.
+	 */
+	public XodusQueueOptions withDeduplicationWindow(Duration window) {
+		Objects.requireNonNull(window);
+		if (window.isNegative()) {
+			throw new IllegalArgumentException("window must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, this.retentionMaxBytes,
+				this.retentionMaxAge, this.retentionInterval, window, this.expirySweepInterval, this.envelope);
+	}
+
+	/**
+	 * Delay between two runs of the background task that removes elements whose time to
+	 * live has passed. The task starts with the first element offered with a time to
+	 * live. {@link Duration#ZERO} disables the task, expired elements are then removed by
+	 * {@link XodusQueue#sweepExpired()} and skipped when the queue is polled.
+	 */
+	public XodusQueueOptions withExpirySweepInterval(Duration interval) {
+		Objects.requireNonNull(interval);
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("interval must not be negative");
+		}
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, this.retentionMaxBytes,
+				this.retentionMaxAge, this.retentionInterval, this.deduplicationWindow, interval, this.envelope);
+	}
+
+	/**
+	 * Stores every element in an envelope with a header that holds the format version,
+	 * flags and the enqueue timestamp. The header costs 10 bytes per element and enables
+	 * {@link XodusQueue#oldestElementAge()} and {@link XodusQueue#timeInQueue()}. The
+	 * format is recorded in the queue, so a queue that still holds elements can only be
+	 * opened with the format it was written with.
+	 */
+	public XodusQueueOptions withEnvelope(boolean enabled) {
+		return new XodusQueueOptions(this.writeMode, this.retentionMaxElements, this.retentionMaxBytes,
+				this.retentionMaxAge, this.retentionInterval, this.deduplicationWindow, this.expirySweepInterval,
+				enabled);
+	}
+
+	public WriteMode getWriteMode() {
+		return this.writeMode;
+	}
+
+	public long getRetentionMaxElements() {
+		return this.retentionMaxElements;
+	}
+
+	public long getRetentionMaxBytes() {
+		return this.retentionMaxBytes;
+	}
+
+	public Duration getRetentionMaxAge() {
+		return this.retentionMaxAge;
+	}
+
+	public Duration getRetentionInterval() {
+		return this.retentionInterval;
+	}
+
+	public Duration getDeduplicationWindow() {
+		return this.deduplicationWindow;
+	}
+
+	public Duration getExpirySweepInterval() {
+		return this.expirySweepInterval;
+	}
+
+	public boolean isEnvelope() {
+		return this.envelope;
+	}
+
+	boolean hasRetention() {
+		return this.retentionMaxElements != Long.MAX_VALUE || this.retentionMaxBytes != Long.MAX_VALUE
+				|| this.retentionMaxAge != null;
+	}
+
+}
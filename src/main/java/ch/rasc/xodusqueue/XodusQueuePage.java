@@ -0,0 +1,31 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.List;
+
+/**
+ * A window of queue elements returned by {@link XodusQueue#page(long, int)}.
+ * {@code nextSequenceId} is the continuation token for the following page, or -1 if there
+ * are no more elements.
+ */
+public record XodusQueuePage<T>(List<XodusQueueEntry<T>> entries, long nextSequenceId) {
+
+	public boolean hasMore() {
+		return this.nextSequenceId != -1L;
+	}
+
+}
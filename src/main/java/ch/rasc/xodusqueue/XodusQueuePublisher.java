@@ -0,0 +1,155 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.rasc.xodusqueue.XodusQueue.DrainedEntries;
+
+/**
+ * {@link Flow.Publisher} view of a {@link XodusBlockingQueue}. Every subscription removes
+ * elements from the queue, so concurrent subscribers compete for the elements instead of
+ * each seeing all of them.
+ */
+final class XodusQueuePublisher<T> implements Flow.Publisher<T> {
+
+	private final XodusBlockingQueue<T> queue;
+
+	private final Executor executor;
+
+	private final int maxBatchSize;
+
+	XodusQueuePublisher(XodusBlockingQueue<T> queue, Executor executor, int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("maxBatchSize must be greater than zero");
+		}
+		this.queue = queue;
+		this.executor = Objects.requireNonNull(executor);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		Objects.requireNonNull(subscriber);
+		subscriber.onSubscribe(new QueueSubscription(subscriber));
+	}
+
+	private final class QueueSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super T> subscriber;
+
+		private final AtomicLong demand = new AtomicLong();
+
+		/** true while a take is pending or its batch is being delivered */
+		private final AtomicBoolean inFlight = new AtomicBoolean();
+
+		private volatile boolean cancelled;
+
+		private volatile CompletableFuture<DrainedEntries<T>> pending;
+
+		QueueSubscription(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (this.cancelled) {
+				return;
+			}
+			if (n <= 0) {
+				cancel();
+				this.subscriber.onError(new IllegalArgumentException("non-positive subscription request"));
+				return;
+			}
+			this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+			requestBatch();
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+			CompletableFuture<DrainedEntries<T>> future = this.pending;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		private void requestBatch() {
+			if (this.cancelled || this.demand.get() == 0 || !this.inFlight.compareAndSet(false, true)) {
+				return;
+			}
+
+			int batchSize = (int) Math.min(this.demand.get(), XodusQueuePublisher.this.maxBatchSize);
+			CompletableFuture<DrainedEntries<T>> future;
+			try {
+				future = XodusQueuePublisher.this.queue.drainAsync(batchSize);
+			}
+			catch (RuntimeException e) {
+				this.cancelled = true;
+				this.subscriber.onError(e);
+				return;
+			}
+			this.pending = future;
+			future.whenCompleteAsync(this::deliver, XodusQueuePublisher.this.executor);
+			if (this.cancelled) {
+				future.cancel(false);
+			}
+		}
+
+		private void deliver(DrainedEntries<T> batch, Throwable failure) {
+			if (failure != null) {
+				Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+				if (!(cause instanceof CancellationException) && !this.cancelled) {
+					this.cancelled = true;
+					this.subscriber.onError(cause);
+				}
+				return;
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				if (this.cancelled) {
+					// the subscriber cancelled in the middle of a batch, put the rest
+					// back where it was
+					XodusQueuePublisher.this.queue.restore(batch.from(i));
+					return;
+				}
+				if (this.demand.get() != Long.MAX_VALUE) {
+					this.demand.decrementAndGet();
+				}
+				try {
+					this.subscriber.onNext(batch.elements.get(i));
+				}
+				catch (RuntimeException e) {
+					this.cancelled = true;
+					XodusQueuePublisher.this.queue.restore(batch.from(i + 1));
+					return;
+				}
+			}
+
+			this.inFlight.set(false);
+			requestBatch();
+		}
+
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Environments;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * Manages many named queues that share one Xodus environment. Every queue lives in its
+ * own store of the environment, so all queues share one log, one background cleaner and
+ * one set of file handles.
+ * <p>
+ * Queues are created on first access and cached by name. Closing a queue from the
+ * registry does not close the shared environment, {@link #close()} closes all queues and
+ * the environment.
+ */
+public class XodusQueueRegistry implements AutoCloseable {
+
+	private final Environment env;
+
+	private final Map<String, XodusQueue<?>> queues = new ConcurrentHashMap<>();
+
+	public XodusQueueRegistry(String databaseDir) {
+		this.env = Environments.newInstance(databaseDir);
+	}
+
+	public XodusQueueRegistry(LogConfig logConfig, EnvironmentConfig environmentConfig) {
+		this.env = Environments.newInstance(logConfig, environmentConfig);
+	}
+
+	public <T> XodusQueue<T> getQueue(String name, Class<T> entryClass) {
+		return getQueue(name, XodusQueue.serializerFor(entryClass), XodusQueueOptions.defaults());
+	}
+
+	public <T> XodusQueue<T> getQueue(String name, XodusQueueSerializer<T> serializer) {
+		return getQueue(name, serializer, XodusQueueOptions.defaults());
+	}
+
+	/**
+	 * Returns the queue with the given name, creating it on first access. The serializer
+	 * and options are only used when the queue is created.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> XodusQueue<T> getQueue(String name, XodusQueueSerializer<T> serializer, XodusQueueOptions options) {
+		validateName(name);
+		XodusQueue<?> queue = this.queues.computeIfAbsent(name,
+				n -> new XodusQueue<>(this.env, n, serializer, options, false));
+		if (queue instanceof XodusBlockingQueue) {
+			throw new IllegalStateException("Queue " + name + " is a blocking queue");
+		}
+		return (XodusQueue<T>) queue;
+	}
+
+	public <T> XodusBlockingQueue<T> getBlockingQueue(String name, Class<T> entryClass, long capacity) {
+		return getBlockingQueue(name, XodusQueue.serializerFor(entryClass), capacity, false);
+	}
+
+	public <T> XodusBlockingQueue<T> getBlockingQueue(String name, XodusQueueSerializer<T> serializer, long capacity) {
+		return getBlockingQueue(name, serializer, capacity, false);
+	}
+
+	/**
+	 * Returns the blocking queue with the given name, creating it on first access. The
+	 * serializer, capacity and fairness are only used when the queue is created.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> XodusBlockingQueue<T> getBlockingQueue(String name, XodusQueueSerializer<T> serializer, long capacity,
+			boolean fair) {
+		validateName(name);
+		XodusQueue<?> queue = this.queues.computeIfAbsent(name, n -> new XodusBlockingQueue<>(this.env, n, serializer,
+				XodusQueueOptions.defaults(), false, capacity, fair));
+		if (!(queue instanceof XodusBlockingQueue)) {
+			throw new IllegalStateException("Queue " + name + " is not a blocking queue");
+		}
+		return (XodusBlockingQueue<T>) queue;
+	}
+
+	/**
+	 * Returns the names of all queues stored in the environment, including queues that
+	 * have not been opened yet.
+	 */
+	public Set<String> getQueueNames() {
+		return this.env.computeInReadonlyTransaction(txn -> {
+			Set<String> names = new TreeSet<>();
+			for (String storeName : this.env.getAllStoreNames(txn)) {
+				if (storeName.indexOf('#') == -1) {
+					names.add(storeName);
+				}
+			}
+			return Collections.unmodifiableSet(names);
+		});
+	}
+
+	/**
+	 * Closes the queue with the given name and removes its store, together with any
+	 * auxiliary store of the queue, from the environment.
+	 */
+	public boolean deleteQueue(String name) {
+		validateName(name);
+		XodusQueue<?> queue = this.queues.remove(name);
+		if (queue != null) {
+			queue.close();
+		}
+		return this.env.computeInExclusiveTransaction(txn -> {
+			boolean removed = false;
+			for (String storeName : this.env.getAllStoreNames(txn)) {
+				if (storeName.equals(name) || storeName.startsWith(name + "#")) {
+					this.env.removeStore(storeName, txn);
+					removed = true;
+				}
+			}
+			return removed;
+		});
+	}
+
+	@Override
+	public void close() {
+		List<XodusQueue<?>> open = new ArrayList<>(this.queues.values());
+		this.queues.clear();
+		try {
+			open.forEach(XodusQueue::close);
+		}
+		finally {
+			this.env.close();
+		}
+	}
+
+	private static void validateName(String name) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Queue name must not be empty");
+		}
+		if (name.indexOf('#') != -1) {
+			throw new IllegalArgumentException("Queue name must not contain '#'");
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.Transaction;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * {@link XodusQueue} with a fixed capacity that keeps the most recent elements. An append
+ * that exceeds the capacity removes the oldest elements in the same transaction, so
+ * producers never block and the stored data stays bounded.
+ * <p>
+ * With an eviction batch greater than one, an overflowing append removes at least that
+ * many elements. Fewer, larger deletes are cheaper, and the queue then holds between
+ * {@code capacity - evictionBatch + 1} and {@code capacity} elements.
+ */
+public class XodusRingQueue<T> extends XodusQueue<T> {
+
+	private final long capacity;
+
+	private final long evictionBatch;
+
+	public XodusRingQueue(String databaseDir, Class<T> entryClass, long capacity) {
+		this(databaseDir, serializerFor(entryClass), capacity, 1, XodusQueueOptions.defaults());
+	}
+
+	public XodusRingQueue(String databaseDir, XodusQueueSerializer<T> serializer, long capacity) {
+		this(databaseDir, serializer, capacity, 1, XodusQueueOptions.defaults());
+	}
+
+	public XodusRingQueue(String databaseDir, XodusQueueSerializer<T> serializer, long capacity, long evictionBatch,
+			XodusQueueOptions options) {
+		super(validate(databaseDir, capacity, evictionBatch), serializer, options);
+		this.capacity = capacity;
+		this.evictionBatch = evictionBatch;
+	}
+
+	public XodusRingQueue(LogConfig logConfig, EnvironmentConfig environmentConfig, XodusQueueSerializer<T> serializer,
+			long capacity, long evictionBatch, XodusQueueOptions options) {
+		super(validate(logConfig, capacity, evictionBatch), environmentConfig, serializer, options);
+		this.capacity = capacity;
+		this.evictionBatch = evictionBatch;
+	}
+
+	private static <T> T validate(T value, long capacity, long evictionBatch) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be greater than zero");
+		}
+		if (evictionBatch <= 0 || evictionBatch > capacity) {
+			throw new IllegalArgumentException("Eviction batch must be between 1 and the capacity");
+		}
+		return value;
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	protected long evictOnAppend(Transaction txn, Store store) {
+		long overflow = store.count(txn) - this.capacity;
+		if (overflow <= 0) {
+			return 0L;
+		}
+		return discardHead(txn, store, Math.max(overflow, this.evictionBatch));
+	}
+
+}
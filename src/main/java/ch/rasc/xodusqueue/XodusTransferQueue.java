@@ -0,0 +1,361 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TransferQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.rasc.xodusqueue.serializer.XodusQueueSerializer;
+import jetbrains.exodus.env.EnvironmentConfig;
+import jetbrains.exodus.log.LogConfig;
+
+/**
+ * {@link XodusBlockingQueue} that hands elements directly to consumers that are already
+ * waiting in {@link #take()} or {@link #poll(long, TimeUnit)}, without writing them to
+ * the store.
+ * <p>
+ * {@link #put(Object)}, {@link #offer(Object, long, TimeUnit)} and
+ * {@link #transfer(Object)} offer an element to a waiting consumer and wait up to the
+ * hand-off window until the consumer has received it. Only if no consumer receives it
+ * within that window is the element written to the store. When an insert method returns,
+ * the element is therefore either with a consumer or stored durably.
+ * {@link #offer(Object)} never waits and always writes to the store.
+ * <p>
+ * Consumers take the head of the store before elements in transit, and producers only
+ * hand off while the store is empty, so elements are received in insertion order.
+ */
+public class XodusTransferQueue<T> extends XodusBlockingQueue<T> implements TransferQueue<T> {
+
+	public static final Duration DEFAULT_HAND_OFF_WINDOW = Duration.ofMillis(10);
+
+	/**
+	 * Interval in which {@link #transfer(Object)} checks whether a stored element has
+	 * been removed by something other than a consumer of this class, e.g. drainTo.
+	 */
+	private static final long TRANSFER_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final long handOffWindowNanos;
+
+	/** Elements offered to waiting consumers, guarded by the lock */
+	private final Deque<HandOff<T>> handOffs = new ArrayDeque<>();
+
+	/** Signalled when a consumer received a hand-off or took an element from the store */
+	private final Condition received;
+
+	/** Consumers blocked in take or timed poll, guarded by the lock */
+	private int waitingConsumers;
+
+	public XodusTransferQueue(String databaseDir, Class<T> entryClass) {
+		this(databaseDir, entryClass, Long.MAX_VALUE, DEFAULT_HAND_OFF_WINDOW);
+	}
+
+	public XodusTransferQueue(String databaseDir, XodusQueueSerializer<T> serializer) {
+		this(databaseDir, serializer, Long.MAX_VALUE, DEFAULT_HAND_OFF_WINDOW);
+	}
+
+	public XodusTransferQueue(String databaseDir, Class<T> entryClass, long capacity, Duration handOffWindow) {
+		super(databaseDir, entryClass, capacity);
+		this.handOffWindowNanos = handOffWindow.toNanos();
+		this.received = this.reentrantLock.newCondition();
+	}
+
+	public XodusTransferQueue(String databaseDir, XodusQueueSerializer<T> serializer, long capacity,
+			Duration handOffWindow) {
+		super(databaseDir, serializer, capacity);
+		this.handOffWindowNanos = handOffWindow.toNanos();
+		this.received = this.reentrantLock.newCondition();
+	}
+
+	public XodusTransferQueue(LogConfig logConfig, EnvironmentConfig environmentConfig,
+			XodusQueueSerializer<T> serializer, long capacity, Duration handOffWindow) {
+		super(logConfig, environmentConfig, serializer, capacity);
+		this.handOffWindowNanos = handOffWindow.toNanos();
+		this.received = this.reentrantLock.newCondition();
+	}
+
+	/**
+	 * Offers the element to the waiting consumers and waits up to {@code nanos} until one
+	 * of them received it. Withdraws the element if nobody did.
+	 */
+	private boolean handOff(T e, long nanos) throws InterruptedException {
+		HandOff<T> handOff = new HandOff<>(e);
+		this.handOffs.add(handOff);
+		this.notEmpty.signal();
+		try {
+			while (!handOff.received && nanos > 0) {
+				nanos = this.received.awaitNanos(nanos);
+			}
+		}
+		catch (InterruptedException ex) {
+			if (!handOff.received) {
+				this.handOffs.remove(handOff);
+				throw ex;
+			}
+			Thread.currentThread().interrupt();
+		}
+		if (!handOff.received) {
+			this.handOffs.remove(handOff);
+		}
+		return handOff.received;
+	}
+
+	/**
+	 * Whether a waiting consumer is not yet served by a pending hand-off. A consumer
+	 * stays counted until it reacquires the lock, so a non-empty store means it will take
+	 * a stored element instead.
+	 */
+	private boolean hasIdleConsumer() {
+		return this.waitingConsumers > this.handOffs.size() && isEmpty();
+	}
+
+	/**
+	 * Hands the element to a waiting consumer if there is one, otherwise returns false.
+	 * Used by {@link #tryTransfer(Object)}, which does not throw InterruptedException.
+	 */
+	private boolean tryHandOffToIdleConsumer(T e) {
+		if (!hasIdleConsumer()) {
+			return false;
+		}
+		try {
+			return handOff(e, this.handOffWindowNanos);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public void put(T e) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			if (!hasIdleConsumer() || !handOff(e, this.handOffWindowNanos)) {
+				super.put(e);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			if (hasIdleConsumer() && handOff(e, this.handOffWindowNanos)) {
+				return true;
+			}
+			return super.offer(e, timeout, unit);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands the element to a waiting consumer. Returns false without inserting the
+	 * element if no consumer is waiting or none received it within the hand-off window.
+	 */
+	@Override
+	public boolean tryTransfer(T e) {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return tryHandOffToIdleConsumer(e);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for a consumer to receive the element. Returns false
+	 * without inserting the element if none did.
+	 */
+	@Override
+	public boolean tryTransfer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			return handOff(e, unit.toNanos(timeout));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a consumer received the element. If no consumer is waiting or none
+	 * receives it within the hand-off window, the element is stored and the method waits
+	 * until it has been removed from the store.
+	 */
+	@Override
+	public void transfer(T e) throws InterruptedException {
+		Objects.requireNonNull(e);
+
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			if (hasIdleConsumer() && handOff(e, this.handOffWindowNanos)) {
+				return;
+			}
+
+			long id;
+			while ((id = super.offerWithId(e)) == -1L) {
+				this.notFull.await();
+			}
+			try {
+				while (getById(id) != null) {
+					this.received.awaitNanos(TRANSFER_RECHECK_NANOS);
+				}
+			}
+			catch (InterruptedException ex) {
+				// the element must not stay in the queue unless a consumer already has it
+				if (super.removeById(id)) {
+					throw ex;
+				}
+				Thread.currentThread().interrupt();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the head of the store or, if the store is empty, an element in transit.
+	 */
+	private T pollAny() {
+		T e = super.poll();
+		if (e != null) {
+			this.received.signalAll();
+			return e;
+		}
+		HandOff<T> handOff = this.handOffs.poll();
+		if (handOff != null) {
+			handOff.received = true;
+			this.received.signalAll();
+			return handOff.element;
+		}
+		return null;
+	}
+
+	@Override
+	public T poll() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return pollAny();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T take() throws InterruptedException {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = pollAny()) == null) {
+				this.waitingConsumers++;
+				try {
+					this.notEmpty.await();
+				}
+				finally {
+					this.waitingConsumers--;
+				}
+			}
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lockInterruptibly();
+		try {
+			T e;
+			while ((e = pollAny()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				this.waitingConsumers++;
+				try {
+					nanos = this.notEmpty.awaitNanos(nanos);
+				}
+				finally {
+					this.waitingConsumers--;
+				}
+			}
+			return e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean hasWaitingConsumer() {
+		return getWaitingConsumerCount() > 0;
+	}
+
+	@Override
+	public int getWaitingConsumerCount() {
+		final ReentrantLock lock = this.reentrantLock;
+		lock.lock();
+		try {
+			return this.waitingConsumers;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private static final class HandOff<T> {
+
+		final T element;
+
+		boolean received;
+
+		HandOff(T element) {
+			this.element = element;
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Measures enqueue throughput of {@link ShardedXodusQueue} with a growing number of
+ * shards. Run with the {@code stress} Maven profile.
+ */
+public class ShardedXodusQueueStressTest {
+
+	private static final int PRODUCERS = 16;
+
+	private static final int PER_PRODUCER = 400;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void compareShardCounts() throws Exception {
+		for (int shards = 1; shards <= 8; shards *= 2) {
+			long nanos = run(shards);
+			System.out.printf("shards=%d  %8.0f offers/s%n", shards,
+					PRODUCERS * PER_PRODUCER / (nanos / 1_000_000_000.0));
+		}
+	}
+
+	private long run(int shardCount) throws InterruptedException {
+		String dir = this.tempDir.resolve("shards-" + shardCount).toString();
+		try (ShardedXodusQueue<String> queue = new ShardedXodusQueue<>(dir, shardCount, String.class)) {
+			CountDownLatch startLatch = new CountDownLatch(1);
+			CountDownLatch doneLatch = new CountDownLatch(PRODUCERS);
+			for (int p = 0; p < PRODUCERS; p++) {
+				final int pid = p;
+				new Thread(() -> {
+					try {
+						startLatch.await();
+						for (int i = 0; i < PER_PRODUCER; i++) {
+							queue.offer(pid + "-" + i);
+						}
+					}
+					catch (InterruptedException e) {
+						// ignore
+					}
+					finally {
+						doneLatch.countDown();
+					}
+				}).start();
+			}
+
+			long start = System.nanoTime();
+			startLatch.countDown();
+			Assertions.assertTrue(doneLatch.await(5, TimeUnit.MINUTES));
+			long elapsed = System.nanoTime() - start;
+
+			Assertions.assertEquals(PRODUCERS * PER_PRODUCER, queue.size());
+			return elapsed;
+		}
+	}
+
+}
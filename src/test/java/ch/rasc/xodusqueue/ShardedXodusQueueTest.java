@@ -0,0 +1,117 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ch.rasc.xodusqueue.serializer.StringXodusQueueSerializer;
+
+class ShardedXodusQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testRoundRobinAndSteal() {
+		try (ShardedXodusQueue<Integer> queue = new ShardedXodusQueue<>(this.tempDir.toString(), 3, Integer.class)) {
+			Assertions.assertEquals(3, queue.getShardCount());
+			Assertions.assertNull(queue.poll());
+			Assertions.assertTrue(queue.isEmpty());
+
+			for (int i = 0; i < 6; i++) {
+				queue.offer(i);
+			}
+			Assertions.assertEquals(6, queue.size());
+			Assertions.assertEquals(2, queue.getShard(0).size());
+			Assertions.assertEquals(2, queue.getShard(1).size());
+			Assertions.assertEquals(2, queue.getShard(2).size());
+
+			// per shard FIFO
+			Assertions.assertEquals(0, queue.poll(0));
+			Assertions.assertEquals(3, queue.poll(0));
+			Assertions.assertNull(queue.poll(0));
+			Assertions.assertNull(queue.poll(0, false));
+			Assertions.assertEquals(1, queue.poll(0, true));
+
+			List<Integer> rest = new ArrayList<>();
+			Integer e;
+			while ((e = queue.poll()) != null) {
+				rest.add(e);
+			}
+			Collections.sort(rest);
+			Assertions.assertEquals(Arrays.asList(2, 4, 5), rest);
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testPeekMatchesNextPoll() {
+		try (ShardedXodusQueue<Integer> queue = new ShardedXodusQueue<>(this.tempDir.toString(), 3, Integer.class)) {
+			for (int i = 0; i < 6; i++) {
+				queue.offer(i);
+			}
+			for (int i = 0; i < 6; i++) {
+				Integer head = queue.peek();
+				Assertions.assertNotNull(head);
+				Assertions.assertEquals(head, queue.poll());
+			}
+			Assertions.assertNull(queue.peek());
+		}
+	}
+
+	@Test
+	void testKeyedOfferKeepsOrder() {
+		List<String> dirs = Arrays.asList(this.tempDir.resolve("a").toString(), this.tempDir.resolve("b").toString());
+		try (ShardedXodusQueue<String> queue = new ShardedXodusQueue<>(dirs, new StringXodusQueueSerializer())) {
+			for (int i = 0; i < 5; i++) {
+				queue.offer("customer-1", "c1-" + i);
+				queue.offer("customer-2", "c2-" + i);
+			}
+			Assertions.assertEquals(10, queue.size());
+			Assertions.assertTrue(queue.contains("c2-4"));
+
+			int shard = queue.shardFor("customer-1");
+			List<String> c1 = new ArrayList<>();
+			for (String e : queue.getShard(shard)) {
+				if (e.startsWith("c1-")) {
+					c1.add(e);
+				}
+			}
+			Assertions.assertEquals(Arrays.asList("c1-0", "c1-1", "c1-2", "c1-3", "c1-4"), c1);
+		}
+
+		try (ShardedXodusQueue<String> queue = new ShardedXodusQueue<>(dirs, new StringXodusQueueSerializer())) {
+			Assertions.assertEquals(10, queue.size());
+			queue.clear();
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testInvalidShardCount() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new ShardedXodusQueue<>(this.tempDir.toString(), 0, String.class));
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compares producer throughput of the exclusive and the optimistic write mode. Run with
+ * the {@code stress} Maven profile.
+ */
+public class WriteModeStressTest {
+
+	private static final int TOTAL_ELEMENTS = 6_400;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void compareWriteModes() throws Exception {
+		for (int producers = 1; producers <= 64; producers *= 2) {
+			for (XodusQueueOptions.WriteMode mode : XodusQueueOptions.WriteMode.values()) {
+				long nanos = run(mode, producers);
+				System.out.printf("%-10s producers=%2d  %8.0f offers/s%n", mode, producers,
+						TOTAL_ELEMENTS / (nanos / 1_000_000_000.0));
+			}
+		}
+	}
+
+	private long run(XodusQueueOptions.WriteMode mode, int producers) throws InterruptedException {
+		String dir = this.tempDir.resolve(mode + "-" + producers).toString();
+		XodusQueueOptions options = XodusQueueOptions.defaults().withWriteMode(mode);
+		int perProducer = TOTAL_ELEMENTS / producers;
+
+		try (XodusQueue<String> queue = new XodusQueue<>(dir, String.class, options)) {
+			CountDownLatch startLatch = new CountDownLatch(1);
+			CountDownLatch doneLatch = new CountDownLatch(producers);
+			for (int p = 0; p < producers; p++) {
+				final int pid = p;
+				new Thread(() -> {
+					try {
+						startLatch.await();
+						for (int i = 0; i < perProducer; i++) {
+							queue.offer(pid + "-" + i);
+						}
+					}
+					catch (InterruptedException e) {
+						// ignore
+					}
+					finally {
+						doneLatch.countDown();
+					}
+				}).start();
+			}
+
+			long start = System.nanoTime();
+			startLatch.countDown();
+			Assertions.assertTrue(doneLatch.await(5, TimeUnit.MINUTES));
+			long elapsed = System.nanoTime() - start;
+
+			Assertions.assertEquals(perProducer * producers, queue.size());
+			return elapsed;
+		}
+	}
+
+}
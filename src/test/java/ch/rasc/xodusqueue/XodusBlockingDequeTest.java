@@ -0,0 +1,115 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusBlockingDequeTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("dequetest").toString();
+	}
+
+	@Test
+	void testBothEnds() {
+		try (XodusBlockingDeque<String> deque = new XodusBlockingDeque<>(dbDir(), String.class)) {
+			Assertions.assertNull(deque.pollFirst());
+			Assertions.assertNull(deque.pollLast());
+			Assertions.assertThrows(NoSuchElementException.class, deque::getFirst);
+
+			deque.offerLast("b");
+			deque.offerFirst("a");
+			deque.offerLast("c");
+			deque.push("urgent");
+
+			Assertions.assertEquals(Arrays.asList("urgent", "a", "b", "c"), new ArrayList<>(deque));
+			List<String> descending = new ArrayList<>();
+			deque.descendingIterator().forEachRemaining(descending::add);
+			Assertions.assertEquals(Arrays.asList("c", "b", "a", "urgent"), descending);
+
+			Assertions.assertEquals("urgent", deque.peekFirst());
+			Assertions.assertEquals("c", deque.peekLast());
+			Assertions.assertEquals("c", deque.pollLast());
+			Assertions.assertEquals("urgent", deque.pop());
+			Assertions.assertEquals(2, deque.size());
+		}
+
+		try (XodusBlockingDeque<String> deque = new XodusBlockingDeque<>(dbDir(), String.class)) {
+			deque.addFirst("first");
+			deque.addLast("last");
+			Assertions.assertEquals(Arrays.asList("first", "a", "b", "last"), new ArrayList<>(deque));
+		}
+	}
+
+	@Test
+	void testRemoveOccurrences() {
+		try (XodusBlockingDeque<String> deque = new XodusBlockingDeque<>(dbDir(), String.class)) {
+			deque.addAll(Arrays.asList("x", "y", "x", "z", "x"));
+			Assertions.assertTrue(deque.removeLastOccurrence("x"));
+			Assertions.assertTrue(deque.removeFirstOccurrence("x"));
+			Assertions.assertFalse(deque.removeFirstOccurrence("missing"));
+			Assertions.assertEquals(Arrays.asList("y", "x", "z"), new ArrayList<>(deque));
+
+			List<String> drained = new ArrayList<>();
+			Assertions.assertEquals(2, deque.drainTo(drained, 2));
+			Assertions.assertEquals(Arrays.asList("y", "x"), drained);
+			deque.clear();
+			Assertions.assertTrue(deque.isEmpty());
+		}
+	}
+
+	@Test
+	void testCapacityAndBlocking() throws Exception {
+		try (XodusBlockingDeque<Integer> deque = new XodusBlockingDeque<>(dbDir(), Integer.class, 2)) {
+			Assertions.assertTrue(deque.offerFirst(1));
+			Assertions.assertTrue(deque.offerLast(2));
+			Assertions.assertFalse(deque.offerFirst(3));
+			Assertions.assertThrows(IllegalStateException.class, () -> deque.addLast(3));
+			Assertions.assertFalse(deque.offerLast(3, 10, TimeUnit.MILLISECONDS));
+			Assertions.assertEquals(0, deque.remainingCapacity());
+
+			CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+				try {
+					deque.putFirst(0);
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			TimeUnit.MILLISECONDS.sleep(50);
+			Assertions.assertFalse(producer.isDone());
+			Assertions.assertEquals(2, deque.takeLast());
+			producer.get(5, TimeUnit.SECONDS);
+			Assertions.assertEquals(0, deque.takeFirst());
+			Assertions.assertEquals(1, deque.takeFirst());
+			Assertions.assertNull(deque.pollLast(10, TimeUnit.MILLISECONDS));
+		}
+	}
+
+}
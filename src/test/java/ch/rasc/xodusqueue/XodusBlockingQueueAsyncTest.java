@@ -0,0 +1,151 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusBlockingQueueAsyncTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("asynctest").toString();
+	}
+
+	@Test
+	void testTakeAsyncCompletedByOffer() throws Exception {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class)) {
+			CompletableFuture<String> first = queue.takeAsync();
+			CompletableFuture<String> second = queue.takeAsync();
+			Assertions.assertThrows(TimeoutException.class, () -> first.get(100, TimeUnit.MILLISECONDS));
+
+			queue.offer("one");
+			Assertions.assertEquals("one", first.get(5, TimeUnit.SECONDS));
+			Assertions.assertFalse(second.isDone());
+
+			queue.put("two");
+			Assertions.assertEquals("two", second.get(5, TimeUnit.SECONDS));
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testTakeBatchAsync() throws Exception {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> queue.takeBatchAsync(0));
+
+			queue.addAll(Arrays.asList(1, 2, 3, 4, 5));
+			Assertions.assertEquals(Arrays.asList(1, 2, 3), queue.takeBatchAsync(3).get(5, TimeUnit.SECONDS));
+			Assertions.assertEquals(Arrays.asList(4, 5), queue.takeBatchAsync(10).get(5, TimeUnit.SECONDS));
+
+			CompletableFuture<List<Integer>> pending = queue.takeBatchAsync(10);
+			queue.addAll(Arrays.asList(6, 7));
+			Assertions.assertEquals(Arrays.asList(6, 7), pending.get(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	void testOfferAsyncWaitsForSpace() throws Exception {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 1)) {
+			queue.offerAsync("one").get(5, TimeUnit.SECONDS);
+			CompletableFuture<Void> second = queue.offerAsync("two");
+			Assertions.assertThrows(TimeoutException.class, () -> second.get(100, TimeUnit.MILLISECONDS));
+
+			Assertions.assertEquals("one", queue.take());
+			second.get(5, TimeUnit.SECONDS);
+			Assertions.assertEquals("two", queue.takeAsync().get(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	void testCancelledTakeDoesNotConsume() throws Exception {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class)) {
+			CompletableFuture<String> cancelled = queue.takeAsync();
+			Assertions.assertTrue(cancelled.cancel(false));
+			CompletableFuture<String> active = queue.takeAsync();
+
+			queue.offer("one");
+			Assertions.assertEquals("one", active.get(5, TimeUnit.SECONDS));
+
+			queue.offer("two");
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals("two", queue.poll());
+		}
+	}
+
+	@Test
+	void testCancelRacingWithOfferKeepsElementsInOrder() throws Exception {
+		int rounds = 200;
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			List<Integer> delivered = new ArrayList<>();
+			for (int i = 0; i < rounds; i++) {
+				CompletableFuture<Integer> take = queue.takeAsync();
+				CompletableFuture<Boolean> cancel = CompletableFuture.supplyAsync(() -> take.cancel(false));
+				queue.addAll(Arrays.asList(2 * i, 2 * i + 1));
+				cancel.get(5, TimeUnit.SECONDS);
+				try {
+					delivered.add(take.get(5, TimeUnit.SECONDS));
+				}
+				catch (CancellationException e) {
+					// the element stays in the queue or is restored
+				}
+			}
+
+			// restores run on the async thread, wait until every element is accounted for
+			for (int i = 0; i < 500 && delivered.size() + queue.size() < 2 * rounds; i++) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			List<Integer> remaining = new ArrayList<>(queue);
+			Assertions.assertEquals(2 * rounds, delivered.size() + remaining.size());
+
+			List<Integer> sorted = new ArrayList<>(remaining);
+			Collections.sort(sorted);
+			Assertions.assertEquals(sorted, remaining);
+
+			Set<Integer> all = new HashSet<>(delivered);
+			all.addAll(remaining);
+			Assertions.assertEquals(2 * rounds, all.size());
+		}
+	}
+
+	@Test
+	void testCloseFailsPendingOperations() {
+		CompletableFuture<String> pending;
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class)) {
+			pending = queue.takeAsync();
+		}
+		ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+				() -> pending.get(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(ex.getCause() instanceof IllegalStateException);
+	}
+
+}
@@ -16,8 +16,10 @@
 package ch.rasc.xodusqueue;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CountDownLatch;
@@ -144,13 +146,48 @@ class XodusBlockingQueueCapacityTest {
 					() -> queue.addAll(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L)));
 			Assertions.assertEquals(3, queue.size());
 
+			Assertions.assertEquals(Arrays.asList(1L, 2L, 3L), Arrays.asList(queue.toArray()));
+
 			queue.clear();
+			Assertions.assertFalse(queue.addAll(Collections.emptyList()));
 			boolean modified = queue.addAll(Arrays.asList(1L, 2L, 3L));
 			Assertions.assertEquals(true, modified);
 			Assertions.assertEquals(3, queue.size());
 		}
 	}
 
+	@Test
+	void testPutAll() throws InterruptedException {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class, 3)) {
+			List<Integer> input = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				input.add(i);
+			}
+
+			List<Integer> consumed = new ArrayList<>();
+			Thread consumer = new Thread(() -> {
+				try {
+					for (int i = 0; i < 10; i++) {
+						consumed.add(queue.take());
+					}
+				}
+				catch (InterruptedException e) {
+					Assertions.fail(e);
+				}
+			});
+			consumer.start();
+
+			queue.putAll(input);
+			consumer.join(5_000);
+			Assertions.assertEquals(input, consumed);
+			Assertions.assertTrue(queue.isEmpty());
+
+			Assertions.assertThrows(IllegalArgumentException.class, () -> queue.putAll(queue));
+			Assertions.assertThrows(NullPointerException.class, () -> queue.putAll(Arrays.asList(1, null)));
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
 	@Test
 	void testRemove() {
 		try (XodusBlockingQueue<Long> queue = new XodusBlockingQueue<>(dbDir(), Long.class, 1)) {
@@ -408,6 +445,221 @@ class XodusBlockingQueueCapacityTest {
 		}
 	}
 
+	@Test
+	void testTrimToReleasesBlockedProducer() throws InterruptedException {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 3)) {
+			queue.put("one");
+			queue.put("two");
+			queue.put("three");
+
+			CountDownLatch done = new CountDownLatch(1);
+			Thread producer = new Thread(() -> {
+				try {
+					queue.put("four");
+					done.countDown();
+				}
+				catch (InterruptedException e) {
+					Assertions.fail(e);
+				}
+			});
+			producer.start();
+
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals(1, done.getCount());
+			Assertions.assertEquals(2L, queue.trimTo(1));
+			Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+			Assertions.assertEquals(Arrays.asList("three", "four"), Arrays.asList(queue.toArray()));
+		}
+	}
+
+	@Test
+	void testLeaseReleasesCapacityAndRequeueWakesTaker() throws Exception {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 1)) {
+			queue.put("one");
+			Assertions.assertFalse(queue.offer("two"));
+
+			List<XodusQueueEntry<String>> leased = queue.lease(1, Duration.ofMillis(50));
+			Assertions.assertEquals("one", leased.get(0).element());
+			Assertions.assertEquals(1, queue.remainingCapacity());
+
+			// the taker gets the element back once the lease expires
+			TimeUnit.MILLISECONDS.sleep(100);
+			CountDownLatch taken = new CountDownLatch(1);
+			Thread consumer = new Thread(() -> {
+				try {
+					Assertions.assertEquals("one", queue.take());
+					taken.countDown();
+				}
+				catch (InterruptedException e) {
+					Assertions.fail(e);
+				}
+			});
+			consumer.start();
+			TimeUnit.MILLISECONDS.sleep(50);
+			Assertions.assertEquals(1, queue.requeueExpiredLeases());
+			Assertions.assertTrue(taken.await(5, TimeUnit.SECONDS));
+			Assertions.assertEquals(0, queue.inFlightCount());
+		}
+	}
+
+	@Test
+	void testOfferIfAbsent() throws InterruptedException {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 2)) {
+			Assertions.assertTrue(queue.offerIfAbsent("a", "one"));
+			Assertions.assertFalse(queue.offerIfAbsent("a", "one"));
+			Assertions.assertTrue(queue.offerIfAbsent("b", "two"));
+			Assertions.assertFalse(queue.offerIfAbsent("c", "three"));
+			Assertions.assertEquals("one", queue.take());
+			Assertions.assertTrue(queue.offerIfAbsent("c", "three"));
+			Assertions.assertEquals(Arrays.asList("two", "three"), Arrays.asList(queue.toArray()));
+		}
+	}
+
+	@Test
+	void testOfferWithIdAndRemoveById() {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 2)) {
+			long one = queue.offerWithId("one");
+			long two = queue.offerWithId("two");
+			Assertions.assertTrue(one > 0 && two > one);
+			Assertions.assertEquals(-1L, queue.offerWithId("three"));
+			Assertions.assertEquals(0, queue.remainingCapacity());
+
+			Assertions.assertTrue(queue.removeById(one));
+			Assertions.assertEquals(1, queue.remainingCapacity());
+			Assertions.assertTrue(queue.offerWithId("three") > two);
+			Assertions.assertEquals("two", queue.poll());
+			Assertions.assertEquals("three", queue.poll());
+		}
+	}
+
+	@Test
+	void testByteCapacity() {
+		String dbDir = dbDir();
+		long entryBytes;
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir, String.class, 100, 100)) {
+			Assertions.assertEquals(100, queue.remainingByteCapacity());
+			Assertions.assertTrue(queue.offer("0123456789"));
+			entryBytes = 100 - queue.remainingByteCapacity();
+			Assertions.assertTrue(entryBytes > 10);
+
+			while (queue.offer("0123456789")) {
+				// fill the byte budget
+			}
+			Assertions.assertEquals(100 / entryBytes + (100 % entryBytes == 0 ? 0 : 1), queue.size());
+			Assertions.assertEquals(0, queue.remainingByteCapacity());
+			Assertions.assertEquals(0, queue.remainingCapacity());
+			Assertions.assertEquals(-1L, queue.offerWithId("0123456789"));
+			Assertions.assertThrows(IllegalStateException.class, () -> queue.add("0123456789"));
+
+			Assertions.assertEquals("0123456789", queue.poll());
+			Assertions.assertTrue(queue.offer("0123456789"));
+		}
+
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir, String.class, 100, 1000)) {
+			// the counter is rebuilt from the stored entries
+			Assertions.assertEquals(1000 - queue.size() * entryBytes, queue.remainingByteCapacity());
+		}
+	}
+
+	@Test
+	void testByteCapacityBlocksPut() throws InterruptedException {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, Long.MAX_VALUE, 30)) {
+			queue.put("0123456789");
+			queue.put("0123456789");
+			Assertions.assertFalse(queue.offer("x", 50, TimeUnit.MILLISECONDS));
+
+			CountDownLatch put = new CountDownLatch(1);
+			Thread producer = new Thread(() -> {
+				try {
+					queue.put("x");
+					put.countDown();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			producer.start();
+			Assertions.assertFalse(put.await(100, TimeUnit.MILLISECONDS));
+
+			Assertions.assertEquals("0123456789", queue.take());
+			Assertions.assertTrue(put.await(5, TimeUnit.SECONDS));
+			producer.join(5_000);
+			Assertions.assertEquals(Arrays.asList("0123456789", "x"), Arrays.asList(queue.toArray()));
+		}
+	}
+
+	@Test
+	void testByteAccountingOnAllRemovalPaths() {
+		String dbDir = dbDir();
+		long remaining;
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir, String.class, 1000, 100_000)) {
+			List<String> elements = new ArrayList<>();
+			for (int i = 0; i < 40; i++) {
+				elements.add("element" + i);
+			}
+			queue.addAll(elements);
+			queue.poll();
+			queue.drainTo(new ArrayList<>(), 2);
+			queue.discardHead(2);
+			queue.remove("element10");
+			queue.removeAll(Arrays.asList("element11", "element12"));
+			long id = queue.offerWithId("short");
+			Assertions.assertTrue(queue.replaceById(id, "a much longer element"));
+			long removeId = queue.offerWithId("removed");
+			Assertions.assertTrue(queue.removeById(removeId));
+			List<XodusQueueEntry<String>> leased = queue.lease(2, Duration.ofMinutes(1));
+			queue.ack(leased.get(0).sequenceId());
+			queue.lease(3, Duration.ZERO);
+			queue.requeueExpiredLeases();
+			queue.trimTo(20);
+			queue.retainAll(elements.subList(25, 40));
+			remaining = queue.remainingByteCapacity();
+			Assertions.assertEquals(15, queue.size());
+		}
+
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir, String.class, 1000, 100_000)) {
+			Assertions.assertEquals(remaining, queue.remainingByteCapacity());
+			queue.clear();
+			Assertions.assertEquals(100_000, queue.remainingByteCapacity());
+		}
+	}
+
+	@Test
+	void testInvalidByteCapacity() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new XodusBlockingQueue<>(dbDir(), String.class, 10, 0));
+	}
+
+	@Test
+	void testTakeSkipsExpiredElements() throws InterruptedException {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 2)) {
+			Assertions.assertTrue(queue.offer("expiring", Duration.ofMillis(50)));
+			Assertions.assertTrue(queue.offer("expiring", Duration.ofMillis(50)));
+			Assertions.assertFalse(queue.offer("full", Duration.ofHours(1)));
+			Assertions.assertFalse(queue.offer("full"));
+
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+			CountDownLatch taken = new CountDownLatch(1);
+			Thread consumer = new Thread(() -> {
+				try {
+					Assertions.assertEquals("fresh", queue.take());
+					taken.countDown();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			consumer.start();
+			queue.offer("gone", Duration.ZERO);
+			Assertions.assertFalse(taken.await(100, TimeUnit.MILLISECONDS));
+			queue.put("fresh");
+			Assertions.assertTrue(taken.await(5, TimeUnit.SECONDS));
+			consumer.join(5_000);
+		}
+	}
+
 	@Test
 	void testPeek() {
 		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, 1)) {
@@ -242,6 +242,51 @@ class XodusBlockingQueueTest {
 		}
 	}
 
+	@Test
+	void testReadsDoNotWaitForLock() throws Exception {
+		try (XodusBlockingQueue<String> queue = new XodusBlockingQueue<>(dbDir(), String.class, Long.MAX_VALUE)) {
+			queue.add("one");
+			queue.add("two");
+
+			CountDownLatch draining = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			List<String> sink = new ArrayList<>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public boolean add(String e) {
+					draining.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					return super.add(e);
+				}
+			};
+
+			// drainTo holds the lock until the sink accepts the element
+			Thread drainer = new Thread(() -> queue.drainTo(sink, 1));
+			drainer.start();
+			Assertions.assertTrue(draining.await(5, TimeUnit.SECONDS));
+
+			Assertions.assertEquals(2, queue.size());
+			Assertions.assertEquals(2L, queue.sizeLong());
+			Assertions.assertFalse(queue.isEmpty());
+			Assertions.assertEquals("one", queue.peek());
+			Assertions.assertTrue(queue.contains("two"));
+			Assertions.assertTrue(queue.containsAll(Arrays.asList("one", "two")));
+			Assertions.assertArrayEquals(new Object[] { "one", "two" }, queue.toArray());
+			Assertions.assertTrue(queue.iterator().hasNext());
+
+			release.countDown();
+			drainer.join(5_000);
+			Assertions.assertEquals(Arrays.asList("one"), sink);
+			Assertions.assertEquals(1, queue.size());
+		}
+	}
+
 	@Test
 	public void testMultipleThreads() throws Throwable {
 
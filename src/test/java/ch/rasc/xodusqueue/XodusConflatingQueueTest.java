@@ -0,0 +1,101 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusConflatingQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("conflatingtest").toString();
+	}
+
+	@Test
+	void testLatestValuePerKey() {
+		try (XodusConflatingQueue<String> queue = new XodusConflatingQueue<>(dbDir(), String.class)) {
+			long ibm = queue.offerOrReplace("IBM", "IBM 100");
+			queue.offerOrReplace("AAPL", "AAPL 200");
+			Assertions.assertEquals(ibm, queue.offerOrReplace("IBM", "IBM 101"));
+			queue.offerOrReplace("IBM", "IBM 102");
+
+			Assertions.assertEquals(2, queue.size());
+			Assertions.assertEquals("IBM 102", queue.peek());
+			Assertions.assertEquals("IBM 102", queue.getByKey("IBM"));
+			Assertions.assertEquals(Arrays.asList("IBM 102", "AAPL 200"), new ArrayList<>(queue));
+
+			// once consumed the key starts over at the tail
+			Assertions.assertEquals("IBM 102", queue.poll());
+			Assertions.assertNull(queue.getByKey("IBM"));
+			Assertions.assertTrue(queue.offerOrReplace("IBM", "IBM 103") > ibm);
+			queue.offerOrReplace("AAPL", "AAPL 201");
+			Assertions.assertEquals(Arrays.asList("AAPL 201", "IBM 103"), new ArrayList<>(queue));
+		}
+
+		try (XodusConflatingQueue<String> queue = new XodusConflatingQueue<>(dbDir(), String.class)) {
+			queue.offerOrReplace("IBM", "IBM 104");
+			Assertions.assertEquals(Arrays.asList("AAPL 201", "IBM 104"), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testRestartWithStaleIndexEntries() {
+		try (XodusConflatingQueue<String> queue = new XodusConflatingQueue<>(dbDir(), String.class)) {
+			for (int i = 0; i < 20; i++) {
+				queue.offerOrReplace("key-" + i, "value-" + i);
+			}
+			while (queue.poll() != null) {
+				// consume everything, the index entries stay behind
+			}
+		}
+
+		try (XodusConflatingQueue<String> queue = new XodusConflatingQueue<>(dbDir(), String.class)) {
+			Assertions.assertTrue(queue.offerOrReplace("key-0", "new-0") > 20);
+			for (int i = 1; i < 20; i++) {
+				queue.offerOrReplace("other-" + i, "other-" + i);
+			}
+			Assertions.assertEquals("new-0", queue.getByKey("key-0"));
+			Assertions.assertNull(queue.getByKey("key-19"));
+			Assertions.assertEquals(20, queue.size());
+			Assertions.assertEquals("new-0", queue.poll());
+		}
+	}
+
+	@Test
+	void testBacklogBoundedByKeys() {
+		try (XodusConflatingQueue<Integer> queue = new XodusConflatingQueue<>(dbDir(), Integer.class)) {
+			for (int i = 0; i < 1000; i++) {
+				queue.offerOrReplace("key-" + i % 10, i);
+				if (i % 7 == 0) {
+					queue.poll();
+				}
+			}
+			Assertions.assertTrue(queue.size() <= 10);
+			for (Integer value : queue) {
+				Assertions.assertEquals(value, queue.getByKey("key-" + value % 10));
+			}
+		}
+	}
+
+}
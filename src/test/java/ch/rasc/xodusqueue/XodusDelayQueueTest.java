@@ -0,0 +1,129 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusDelayQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("delaytest").toString();
+	}
+
+	@Test
+	void testPollOnlyReturnsExpiredElements() throws InterruptedException {
+		try (XodusDelayQueue<String> queue = new XodusDelayQueue<>(dbDir(), String.class)) {
+			Assertions.assertNull(queue.peekDelay());
+
+			queue.offer("later", Duration.ofMillis(200));
+			queue.offer("now");
+			queue.offer("now-2");
+
+			Assertions.assertEquals(3, queue.size());
+			Assertions.assertEquals("now", queue.peek());
+			Assertions.assertEquals("now", queue.poll());
+			Assertions.assertEquals("now-2", queue.poll());
+			Assertions.assertNull(queue.poll());
+			Assertions.assertEquals("later", queue.peek());
+			Assertions.assertTrue(queue.peekDelay().toMillis() > 0);
+
+			List<String> drained = new ArrayList<>();
+			Assertions.assertEquals(0, queue.drainTo(drained));
+
+			TimeUnit.MILLISECONDS.sleep(250);
+			Assertions.assertEquals(1, queue.drainTo(drained));
+			Assertions.assertEquals(Arrays.asList("later"), drained);
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testHugeDelaySaturates() {
+		try (XodusDelayQueue<String> queue = new XodusDelayQueue<>(dbDir(), String.class)) {
+			Assertions.assertTrue(queue.offer("never", Duration.ofSeconds(Long.MAX_VALUE)));
+			Assertions.assertTrue(queue.offer("distant", Duration.ofDays(365L * 100_000_000L)));
+			queue.offer("now");
+
+			Assertions.assertEquals("now", queue.poll());
+			Assertions.assertNull(queue.poll());
+			Assertions.assertEquals("distant", queue.peek());
+			Assertions.assertTrue(queue.peekDelay().toDays() > 365L * 10_000_000L);
+			Assertions.assertEquals(2, queue.size());
+		}
+	}
+
+	@Test
+	void testTakeWaitsForDueTime() throws Exception {
+		try (XodusDelayQueue<String> queue = new XodusDelayQueue<>(dbDir(), String.class)) {
+			queue.offer("late", Duration.ofSeconds(30));
+
+			long start = System.nanoTime();
+			CompletableFuture<String> taken = CompletableFuture.supplyAsync(() -> {
+				try {
+					return queue.take();
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			TimeUnit.MILLISECONDS.sleep(50);
+
+			// an earlier element re-arms the waiting taker
+			queue.offer("early", Duration.ofMillis(150));
+			Assertions.assertEquals("early", taken.get(5, TimeUnit.SECONDS));
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			Assertions.assertTrue(elapsedMillis >= 150, "took " + elapsedMillis);
+
+			Assertions.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+			Assertions.assertEquals(1, queue.size());
+		}
+	}
+
+	@Test
+	void testDelaysSurviveRestart() throws InterruptedException {
+		try (XodusDelayQueue<Integer> queue = new XodusDelayQueue<>(dbDir(), Integer.class)) {
+			queue.offer(2, Duration.ofMillis(100));
+			queue.offer(1, Duration.ofMillis(50));
+			queue.offer(3, Duration.ofMillis(100));
+		}
+
+		try (XodusDelayQueue<Integer> queue = new XodusDelayQueue<>(dbDir(), Integer.class)) {
+			queue.offer(4, Duration.ofMillis(100));
+			Assertions.assertEquals(4, queue.size());
+			List<Integer> taken = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				taken.add(queue.poll(5, TimeUnit.SECONDS));
+			}
+			Assertions.assertEquals(1, taken.get(0));
+			Assertions.assertTrue(taken.containsAll(Arrays.asList(2, 3, 4)));
+			Assertions.assertTrue(taken.indexOf(2) < taken.indexOf(3));
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusGroupedQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("groupedtest").toString();
+	}
+
+	@Test
+	void testGroupLocking() {
+		try (XodusGroupedQueue<String> queue = new XodusGroupedQueue<>(dbDir(), String.class)) {
+			Assertions.assertNull(queue.poll());
+
+			queue.offer("customer-1", "c1-a");
+			queue.offer("customer-1", "c1-b");
+			queue.offer("customer-2", "c2-a");
+
+			XodusQueueEntry<String> first = queue.poll();
+			Assertions.assertEquals("c1-a", first.element());
+			Assertions.assertTrue(queue.isLocked("customer-1"));
+
+			// customer-1 is locked, so the next consumer gets customer-2
+			XodusQueueEntry<String> second = queue.poll();
+			Assertions.assertEquals("c2-a", second.element());
+			Assertions.assertNull(queue.poll());
+			Assertions.assertEquals(1, queue.size());
+			Assertions.assertEquals(2, queue.inFlightCount());
+
+			Assertions.assertTrue(queue.complete(first.sequenceId()));
+			Assertions.assertFalse(queue.complete(first.sequenceId()));
+			Assertions.assertFalse(queue.isLocked("customer-1"));
+
+			XodusQueueEntry<String> third = queue.poll();
+			Assertions.assertEquals("c1-b", third.element());
+
+			// a released element is handed out again
+			Assertions.assertTrue(queue.release(third.sequenceId()));
+			Assertions.assertEquals("c1-b", queue.poll().element());
+		}
+	}
+
+	@Test
+	void testLockedBacklogIsSkipped() {
+		try (XodusGroupedQueue<Integer> queue = new XodusGroupedQueue<>(dbDir(), Integer.class)) {
+			for (int i = 0; i < 1000; i++) {
+				queue.offer("a", i);
+			}
+			queue.offer("ab", 1000);
+			queue.offer("b", 1001);
+
+			XodusQueueEntry<Integer> hot = queue.poll();
+			Assertions.assertEquals(0, hot.element());
+			Assertions.assertEquals(1000, queue.poll().element());
+			Assertions.assertEquals(1001, queue.poll().element());
+			Assertions.assertNull(queue.poll());
+
+			// the released element is the head of its group again
+			Assertions.assertTrue(queue.release(hot.sequenceId()));
+			XodusQueueEntry<Integer> again = queue.poll();
+			Assertions.assertEquals(0, again.element());
+			Assertions.assertTrue(queue.complete(again.sequenceId()));
+			Assertions.assertEquals(1, queue.poll().element());
+		}
+	}
+
+	@Test
+	void testReleaseAllAfterRestart() {
+		try (XodusGroupedQueue<String> queue = new XodusGroupedQueue<>(dbDir(), String.class)) {
+			queue.offer("g", "one");
+			queue.offer("g", "two");
+			Assertions.assertEquals("one", queue.poll().element());
+		}
+
+		try (XodusGroupedQueue<String> queue = new XodusGroupedQueue<>(dbDir(), String.class)) {
+			Assertions.assertTrue(queue.isLocked("g"));
+			Assertions.assertNull(queue.poll());
+			Assertions.assertEquals(1L, queue.releaseAll());
+			Assertions.assertEquals("one", queue.poll().element());
+			Assertions.assertTrue(queue.offer("g", "three") > 2);
+		}
+	}
+
+	@Test
+	void testParallelConsumersKeepGroupOrder() throws InterruptedException {
+		int groups = 4;
+		int perGroup = 25;
+		try (XodusGroupedQueue<String> queue = new XodusGroupedQueue<>(dbDir(), String.class)) {
+			for (int i = 0; i < perGroup; i++) {
+				for (int g = 0; g < groups; g++) {
+					queue.offer("g" + g, g + ":" + i);
+				}
+			}
+
+			Map<String, List<Integer>> seen = Collections.synchronizedMap(new HashMap<>());
+			CountDownLatch done = new CountDownLatch(groups * perGroup);
+			List<Thread> consumers = new ArrayList<>();
+			for (int c = 0; c < 3; c++) {
+				Thread consumer = new Thread(() -> {
+					try {
+						while (done.getCount() > 0) {
+							XodusQueueEntry<String> entry = queue.poll(50, TimeUnit.MILLISECONDS);
+							if (entry == null) {
+								continue;
+							}
+							String[] parts = entry.element().split(":");
+							seen.computeIfAbsent(parts[0], k -> Collections.synchronizedList(new ArrayList<>()))
+								.add(Integer.valueOf(parts[1]));
+							queue.complete(entry.sequenceId());
+							done.countDown();
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+				consumers.add(consumer);
+				consumer.start();
+			}
+
+			Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+			for (Thread consumer : consumers) {
+				consumer.join(5_000);
+			}
+			for (List<Integer> order : seen.values()) {
+				Assertions.assertEquals(perGroup, order.size());
+				for (int i = 0; i < perGroup; i++) {
+					Assertions.assertEquals(i, order.get(i));
+				}
+			}
+			Assertions.assertTrue(queue.isEmpty());
+			Assertions.assertEquals(0, queue.inFlightCount());
+		}
+	}
+
+}
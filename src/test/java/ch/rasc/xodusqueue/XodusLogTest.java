@@ -0,0 +1,91 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusLogTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("logtest").toString();
+	}
+
+	@Test
+	void testConsumersReadIndependently() {
+		try (XodusLog<String> log = new XodusLog<>(dbDir(), String.class)) {
+			Assertions.assertEquals(0L, log.registerConsumer("billing"));
+			Assertions.assertEquals(0L, log.registerConsumer("audit"));
+
+			Assertions.assertEquals(1L, log.append("one"));
+			Assertions.assertEquals(3L, log.appendAll(Arrays.asList("two", "three")));
+			Assertions.assertEquals(3L, log.size());
+
+			List<XodusQueueEntry<String>> billing = log.poll("billing", 2);
+			Assertions.assertEquals(Arrays.asList("one", "two"),
+					billing.stream().map(XodusQueueEntry::element).toList());
+			// nothing moves without a commit
+			Assertions.assertEquals(billing, log.poll("billing", 2));
+
+			log.commit("billing", billing.get(1).sequenceId());
+			Assertions.assertEquals(1L, log.lag("billing"));
+			Assertions.assertEquals(3L, log.lag("audit"));
+			Assertions.assertEquals("three", log.poll("billing", 10).get(0).element());
+
+			// audit has not read anything yet
+			Assertions.assertEquals(3L, log.size());
+			log.commit("audit", 1L);
+			Assertions.assertEquals(2L, log.size());
+			Assertions.assertEquals(Map.of("audit", 1L, "billing", 2L), log.getConsumers());
+
+			Assertions.assertThrows(IllegalArgumentException.class, () -> log.commit("audit", 4L));
+		}
+	}
+
+	@Test
+	void testTrimAndRestart() {
+		try (XodusLog<Integer> log = new XodusLog<>(dbDir(), Integer.class)) {
+			log.appendAll(Arrays.asList(1, 2, 3, 4));
+			Assertions.assertEquals(0L, log.trim());
+			log.registerConsumer("b");
+
+			log.commit("a", 4L);
+			log.commit("b", 2L);
+			Assertions.assertEquals(2L, log.size());
+			Assertions.assertTrue(log.removeConsumer("b"));
+			Assertions.assertEquals(0L, log.size());
+		}
+
+		try (XodusLog<Integer> log = new XodusLog<>(dbDir(), Integer.class)) {
+			// offsets continue after the committed position even though the log is empty
+			Assertions.assertEquals(4L, log.lastOffset());
+			Assertions.assertEquals(5L, log.append(5));
+			Assertions.assertEquals(5, log.poll("a", 10).get(0).element());
+			Assertions.assertEquals(0L, log.registerConsumer("c"));
+			Assertions.assertEquals(5L, log.poll("c", 10).get(0).sequenceId());
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusPriorityQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("prioritytest").toString();
+	}
+
+	@Test
+	void testPriorityOrder() {
+		try (XodusPriorityQueue<String> queue = new XodusPriorityQueue<>(dbDir(), String.class)) {
+			Assertions.assertNull(queue.poll());
+			Assertions.assertNull(queue.peekPriority());
+
+			queue.offer("low-1", -5);
+			queue.offer("normal-1");
+			queue.offer("high-1", 10);
+			queue.offer("low-2", -5);
+			queue.offer("max", Integer.MAX_VALUE);
+			queue.offer("min", Integer.MIN_VALUE);
+			queue.offer("high-2", 10);
+			queue.offer("normal-2");
+
+			Assertions.assertEquals(8, queue.size());
+			Assertions.assertEquals(Integer.MAX_VALUE, queue.peekPriority());
+			Assertions.assertEquals(
+					Arrays.asList("max", "high-1", "high-2", "normal-1", "normal-2", "low-1", "low-2", "min"),
+					new ArrayList<>(queue));
+
+			Assertions.assertEquals("max", queue.poll());
+			Assertions.assertEquals("high-1", queue.poll());
+			queue.offer("high-3", 10);
+			Assertions.assertEquals("high-2", queue.peek());
+			Assertions.assertTrue(queue.remove("normal-1"));
+		}
+
+		try (XodusPriorityQueue<String> queue = new XodusPriorityQueue<>(dbDir(), String.class)) {
+			queue.offer("high-4", 10);
+			List<String> result = new ArrayList<>();
+			String e;
+			while ((e = queue.poll()) != null) {
+				result.add(e);
+			}
+			Assertions.assertEquals(Arrays.asList("high-2", "high-3", "high-4", "normal-2", "low-1", "low-2", "min"),
+					result);
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testBlockingTake() throws Exception {
+		try (XodusPriorityBlockingQueue<Integer> queue = new XodusPriorityBlockingQueue<>(dbDir(), Integer.class)) {
+			Assertions.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+			CompletableFuture<Integer> taken = CompletableFuture.supplyAsync(() -> {
+				try {
+					return queue.take();
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			TimeUnit.MILLISECONDS.sleep(50);
+			queue.put(7, 1);
+			Assertions.assertEquals(7, taken.get(5, TimeUnit.SECONDS));
+
+			queue.put(1, 1);
+			queue.put(2, 2);
+			queue.put(3, 3);
+			List<Integer> drained = new ArrayList<>();
+			Assertions.assertEquals(2, queue.drainTo(drained, 2));
+			Assertions.assertEquals(Arrays.asList(3, 2), drained);
+			Assertions.assertEquals(1, queue.take());
+		}
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package ch.rasc.xodusqueue;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
@@ -27,6 +29,7 @@ import org.junit.jupiter.api.Test;
 
 import ch.rasc.xodusqueue.serializer.IntegerXodusQueueSerializer;
 import ch.rasc.xodusqueue.serializer.StringXodusQueueSerializer;
+import jetbrains.exodus.env.Transaction;
 
 public class XodusQueue2Test {
 
@@ -148,4 +151,96 @@ public class XodusQueue2Test {
 
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testOptimisticMultiThreadedPush() throws Throwable {
+		int threadCount = 20;
+		int perThread = 50;
+		CountDownLatch startLatch = new CountDownLatch(threadCount);
+		CountDownLatch latch = new CountDownLatch(threadCount);
+
+		XodusQueueOptions options = XodusQueueOptions.defaults().withWriteMode(XodusQueueOptions.WriteMode.OPTIMISTIC);
+		try (XodusQueue<String> queue = new XodusQueue<>("./queue", String.class, options)) {
+			for (int i = 0; i < threadCount; i++) {
+				new Thread(Integer.toString(i)) {
+					@Override
+					public void run() {
+						try {
+							startLatch.countDown();
+							startLatch.await();
+							for (int j = 0; j < perThread; j++) {
+								if (j % 10 == 0) {
+									queue.addAll(List.of(getName() + "-" + j + "a", getName() + "-" + j + "b"));
+								}
+								else {
+									queue.add(getName() + "-" + j);
+								}
+							}
+						}
+						catch (Throwable e) {
+							e.printStackTrace();
+						}
+						finally {
+							latch.countDown();
+						}
+					}
+				}.start();
+			}
+
+			Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+			int expected = threadCount * (perThread + perThread / 10);
+			Assertions.assertEquals(expected, queue.size());
+
+			Set<String> seen = new HashSet<>();
+			String e;
+			while ((e = queue.poll()) != null) {
+				seen.add(e);
+			}
+			Assertions.assertEquals(expected, seen.size());
+		}
+
+		try (XodusQueue<String> queue = new XodusQueue<>("./queue", String.class, options)) {
+			long id = queue.offerWithId("after-restart");
+			Assertions.assertTrue(id > 0);
+			Assertions.assertEquals("after-restart", queue.poll());
+		}
+	}
+
+	@Test
+	public void testOptimisticLateCommitBecomesHead() throws Throwable {
+		CountDownLatch allocated = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		XodusQueueOptions options = XodusQueueOptions.defaults().withWriteMode(XodusQueueOptions.WriteMode.OPTIMISTIC);
+		try (XodusQueue<String> queue = new XodusQueue<>("./queue", String.class, options) {
+			@Override
+			void addStoredBytes(Transaction txn, long delta) {
+				if ("writer".equals(Thread.currentThread().getName()) && allocated.getCount() > 0) {
+					allocated.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.addStoredBytes(txn, delta);
+			}
+		}) {
+			Thread writer = new Thread(() -> queue.offer("a"), "writer");
+			writer.start();
+			Assertions.assertTrue(allocated.await(10, TimeUnit.SECONDS));
+
+			queue.offer("b");
+			Assertions.assertEquals("b", queue.peek());
+
+			release.countDown();
+			writer.join(10_000);
+			Assertions.assertFalse(writer.isAlive());
+
+			Assertions.assertEquals("a", queue.peek());
+			Assertions.assertEquals("a", queue.poll());
+			Assertions.assertEquals("b", queue.peek());
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusQueuePublisherTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("publishertest").toString();
+	}
+
+	@Test
+	void testDemandIsHonored() throws Exception {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			queue.addAll(Arrays.asList(1, 2, 3, 4, 5));
+
+			TestSubscriber subscriber = new TestSubscriber();
+			queue.asPublisher().subscribe(subscriber);
+			subscriber.subscription.request(3);
+
+			awaitSize(subscriber.received, 3);
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals(Arrays.asList(1, 2, 3), subscriber.received);
+			Assertions.assertEquals(2, queue.size());
+
+			subscriber.subscription.request(10);
+			awaitSize(subscriber.received, 5);
+			Assertions.assertTrue(queue.isEmpty());
+
+			// an idle subscription is completed from the enqueue path
+			queue.put(6);
+			queue.put(7);
+			awaitSize(subscriber.received, 7);
+			Assertions.assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), subscriber.received);
+		}
+	}
+
+	@Test
+	void testCancelStopsDelivery() throws Exception {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			TestSubscriber subscriber = new TestSubscriber();
+			queue.asPublisher().subscribe(subscriber);
+			subscriber.subscription.request(Long.MAX_VALUE);
+			subscriber.subscription.cancel();
+
+			queue.put(1);
+			TimeUnit.MILLISECONDS.sleep(200);
+			Assertions.assertTrue(subscriber.received.isEmpty());
+			Assertions.assertEquals(1, queue.poll());
+		}
+	}
+
+	@Test
+	void testCancelMidBatchKeepsOrder() throws Exception {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			queue.addAll(Arrays.asList(1, 2, 3, 4, 5));
+
+			TestSubscriber subscriber = new TestSubscriber() {
+				@Override
+				public void onNext(Integer item) {
+					super.onNext(item);
+					this.subscription.cancel();
+				}
+			};
+			queue.asPublisher().subscribe(subscriber);
+			subscriber.subscription.request(3);
+
+			awaitSize(subscriber.received, 1);
+			for (int i = 0; i < 500 && queue.size() < 4; i++) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			Assertions.assertEquals(Arrays.asList(1), subscriber.received);
+			Assertions.assertEquals(Arrays.asList(2, 3, 4, 5), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testNonPositiveRequestSignalsError() {
+		try (XodusBlockingQueue<Integer> queue = new XodusBlockingQueue<>(dbDir(), Integer.class)) {
+			TestSubscriber subscriber = new TestSubscriber();
+			queue.asPublisher().subscribe(subscriber);
+			subscriber.subscription.request(0);
+			Assertions.assertTrue(subscriber.error instanceof IllegalArgumentException);
+		}
+	}
+
+	private static void awaitSize(List<?> list, int size) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (list.size() < size && System.nanoTime() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		Assertions.assertEquals(size, list.size());
+	}
+
+	private static class TestSubscriber implements Flow.Subscriber<Integer> {
+
+		final List<Integer> received = new CopyOnWriteArrayList<>();
+
+		volatile Flow.Subscription subscription;
+
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription s) {
+			this.subscription = s;
+		}
+
+		@Override
+		public void onNext(Integer item) {
+			this.received.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			this.error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusQueueRegistryTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testQueuesShareEnvironment() throws InterruptedException {
+		String dir = this.tempDir.toString();
+		try (XodusQueueRegistry registry = new XodusQueueRegistry(dir)) {
+			XodusQueue<String> orders = registry.getQueue("orders", String.class);
+			XodusQueue<Integer> numbers = registry.getQueue("numbers", Integer.class);
+			XodusBlockingQueue<String> jobs = registry.getBlockingQueue("jobs", String.class, 2);
+
+			Assertions.assertSame(orders, registry.getQueue("orders", String.class));
+			Assertions.assertSame(jobs, registry.getBlockingQueue("jobs", String.class, 2));
+
+			orders.add("o1");
+			orders.add("o2");
+			numbers.add(1);
+			jobs.put("j1");
+			jobs.put("j2");
+			Assertions.assertFalse(jobs.offer("j3", 10, TimeUnit.MILLISECONDS));
+
+			Assertions.assertEquals(2, orders.size());
+			Assertions.assertEquals(1, numbers.size());
+			Assertions.assertEquals(2, jobs.size());
+
+			// closing one queue leaves the others usable
+			numbers.close();
+			Assertions.assertEquals("o1", orders.poll());
+		}
+
+		try (XodusQueueRegistry registry = new XodusQueueRegistry(dir)) {
+			Assertions.assertEquals(Set.of("jobs", "numbers", "orders"), registry.getQueueNames());
+			Assertions.assertEquals("o2", registry.getQueue("orders", String.class).poll());
+			Assertions.assertEquals(1, registry.getQueue("numbers", Integer.class).poll());
+			Assertions.assertEquals("j1", registry.getBlockingQueue("jobs", String.class, 2).take());
+		}
+	}
+
+	@Test
+	void testDeleteQueue() {
+		try (XodusQueueRegistry registry = new XodusQueueRegistry(this.tempDir.toString())) {
+			registry.getQueue("a", String.class).add("one");
+			registry.getQueue("b", String.class).add("two");
+
+			Assertions.assertTrue(registry.deleteQueue("a"));
+			Assertions.assertFalse(registry.deleteQueue("a"));
+			Assertions.assertEquals(Set.of("b"), registry.getQueueNames());
+			Assertions.assertTrue(registry.getQueue("a", String.class).isEmpty());
+			Assertions.assertEquals("two", registry.getQueue("b", String.class).peek());
+		}
+	}
+
+	@Test
+	void testInvalidUsage() {
+		try (XodusQueueRegistry registry = new XodusQueueRegistry(this.tempDir.toString())) {
+			registry.getQueue("plain", String.class);
+			Assertions.assertThrows(IllegalStateException.class,
+					() -> registry.getBlockingQueue("plain", String.class, 10));
+			Assertions.assertThrows(IllegalArgumentException.class, () -> registry.getQueue("", String.class));
+			Assertions.assertThrows(IllegalArgumentException.class, () -> registry.getQueue("a#b", String.class));
+		}
+	}
+
+}
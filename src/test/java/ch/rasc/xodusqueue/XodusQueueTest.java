@@ -15,9 +15,13 @@
  */
 package ch.rasc.xodusqueue;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
@@ -492,4 +496,537 @@ class XodusQueueTest {
 		}
 	}
 
+	@Test
+	void testDiscardHead() {
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class)) {
+			Assertions.assertEquals(0L, queue.discardHead(5));
+
+			for (int i = 0; i < 10; i++) {
+				queue.add(i);
+			}
+			Assertions.assertEquals(0L, queue.discardHead(0));
+			Assertions.assertEquals(3L, queue.discardHead(3));
+			Assertions.assertEquals(7, queue.size());
+			Assertions.assertEquals(3, (int) queue.peek());
+
+			// only a small tail survives
+			Assertions.assertEquals(5L, queue.discardHead(5));
+			Assertions.assertEquals(Arrays.asList(8, 9), Arrays.asList(queue.toArray()));
+
+			Assertions.assertEquals(2L, queue.discardHead(100));
+			Assertions.assertTrue(queue.isEmpty());
+
+			queue.add(10);
+			Assertions.assertEquals(10, (int) queue.poll());
+		}
+	}
+
+	@Test
+	void testDiscardHeadWithLargeTail() {
+		String large = "x".repeat(1024 * 1024);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			for (int i = 0; i < 11; i++) {
+				queue.add(Integer.toString(i));
+			}
+			for (int i = 0; i < 5; i++) {
+				queue.add(i + large);
+			}
+
+			// the surviving tail exceeds the rewrite byte limit
+			Assertions.assertEquals(11L, queue.discardHead(11));
+			Assertions.assertEquals(5, queue.size());
+			Assertions.assertEquals("0" + large, queue.poll());
+			Assertions.assertEquals("1" + large, queue.peek());
+		}
+	}
+
+	@Test
+	void testTrimTo() {
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class)) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> queue.trimTo(-1));
+			Assertions.assertEquals(0L, queue.trimTo(5));
+
+			for (int i = 0; i < 100; i++) {
+				queue.add(i);
+			}
+			Assertions.assertEquals(0L, queue.trimTo(100));
+			Assertions.assertEquals(60L, queue.trimTo(40));
+			Assertions.assertEquals(40, queue.size());
+			Assertions.assertEquals(37L, queue.trimTo(3));
+			Assertions.assertEquals(Arrays.asList(97, 98, 99), Arrays.asList(queue.toArray()));
+
+			queue.add(100);
+			Assertions.assertEquals(97, (int) queue.poll());
+			Assertions.assertEquals(3L, queue.trimTo(0));
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testDrainTo() {
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class)) {
+			for (int i = 0; i < 10; i++) {
+				queue.add(i);
+			}
+			List<Integer> drained = new ArrayList<>();
+			Assertions.assertEquals(4, queue.drainTo(drained, 4));
+			Assertions.assertEquals(Arrays.asList(0, 1, 2, 3), drained);
+			Assertions.assertEquals(6, queue.size());
+
+			drained.clear();
+			Assertions.assertEquals(6, queue.drainTo(drained, Integer.MAX_VALUE));
+			Assertions.assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9), drained);
+			Assertions.assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	void testPage() {
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> queue.page(0, 0));
+			XodusQueuePage<String> page = queue.page(0, 10);
+			Assertions.assertTrue(page.entries().isEmpty());
+			Assertions.assertFalse(page.hasMore());
+
+			for (int i = 0; i < 5; i++) {
+				queue.add("e" + i);
+			}
+
+			List<String> seen = new ArrayList<>();
+			long from = 0;
+			int pages = 0;
+			do {
+				page = queue.page(from, 2);
+				page.entries().forEach(e -> seen.add(e.element()));
+				from = page.nextSequenceId();
+				pages++;
+			}
+			while (page.hasMore());
+
+			Assertions.assertEquals(3, pages);
+			Assertions.assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4"), seen);
+			Assertions.assertEquals(5, queue.size());
+
+			XodusQueueEntry<String> head = queue.page(0, 1).entries().get(0);
+			queue.poll();
+			page = queue.page(head.sequenceId(), 10);
+			Assertions.assertEquals(4, page.entries().size());
+			Assertions.assertEquals("e1", page.entries().get(0).element());
+			Assertions.assertTrue(page.entries().get(0).sequenceId() > head.sequenceId());
+		}
+	}
+
+	@Test
+	void testPeekCache() {
+		try (XodusQueue<TestPojo> queue = new XodusQueue<>("./test", TestPojo.class)) {
+			Assertions.assertNull(queue.peek());
+
+			TestPojo one = new TestPojo(1, "John");
+			TestPojo two = new TestPojo(2, "Anna");
+			queue.offer(one);
+			TestPojo head = queue.peek();
+			Assertions.assertEquals(one, head);
+			Assertions.assertSame(head, queue.peek());
+
+			queue.offer(two);
+			Assertions.assertSame(head, queue.peek());
+
+			queue.poll();
+			Assertions.assertEquals(two, queue.peek());
+
+			Assertions.assertTrue(queue.remove(two));
+			Assertions.assertNull(queue.peek());
+
+			queue.addAll(Arrays.asList(one, two));
+			Assertions.assertEquals(one, queue.peek());
+			queue.discardHead(1);
+			Assertions.assertEquals(two, queue.peek());
+			queue.clear();
+			Assertions.assertNull(queue.peek());
+		}
+	}
+
+	@Test
+	void testIdOperations() {
+		try (XodusQueue<TestPojo> queue = new XodusQueue<>("./test", TestPojo.class)) {
+			TestPojo one = new TestPojo(1, "John");
+			TestPojo two = new TestPojo(2, "Anna");
+			TestPojo three = new TestPojo(3, "Li");
+			Assertions.assertThrows(NullPointerException.class, () -> queue.offerWithId(null));
+			Assertions.assertNull(queue.getById(1));
+			Assertions.assertFalse(queue.removeById(1));
+			Assertions.assertFalse(queue.replaceById(1, one));
+
+			long id1 = queue.offerWithId(one);
+			long id2 = queue.offerWithId(two);
+			long id3 = queue.offerWithId(three);
+			Assertions.assertTrue(id1 < id2 && id2 < id3);
+
+			Assertions.assertEquals(two, queue.getById(id2));
+			Assertions.assertTrue(queue.removeById(id2));
+			Assertions.assertFalse(queue.removeById(id2));
+			Assertions.assertNull(queue.getById(id2));
+			Assertions.assertEquals(2, queue.size());
+
+			TestPojo dean = new TestPojo(4, "Dean");
+			Assertions.assertEquals(one, queue.peek());
+			Assertions.assertTrue(queue.replaceById(id1, dean));
+			Assertions.assertEquals(dean, queue.peek());
+			Assertions.assertEquals(dean, queue.poll());
+			Assertions.assertEquals(three, queue.poll());
+		}
+	}
+
+	@Test
+	void testLeaseAndAck() {
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			Assertions.assertTrue(queue.lease(5, Duration.ofSeconds(10)).isEmpty());
+			Assertions.assertEquals(0, queue.ack(1L));
+
+			queue.add("one");
+			queue.add("two");
+			queue.add("three");
+
+			List<XodusQueueEntry<String>> leased = queue.lease(2, Duration.ofSeconds(10));
+			Assertions.assertEquals(Arrays.asList("one", "two"),
+					leased.stream().map(XodusQueueEntry::element).toList());
+			Assertions.assertEquals(1, queue.size());
+			Assertions.assertEquals(2, queue.inFlightCount());
+			Assertions.assertEquals("three", queue.peek());
+
+			Assertions.assertEquals(2, queue.ack(leased.get(0).sequenceId(), leased.get(1).sequenceId()));
+			Assertions.assertEquals(0, queue.ack(leased.get(0).sequenceId()));
+			Assertions.assertEquals(0, queue.inFlightCount());
+			Assertions.assertEquals(1, queue.size());
+		}
+	}
+
+	@Test
+	void testExpiredLeasesReturnToHead() throws InterruptedException {
+		long threeId;
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			queue.add("one");
+			queue.add("two");
+			queue.add("three");
+
+			List<XodusQueueEntry<String>> leased = queue.lease(2, Duration.ofMillis(50));
+			Assertions.assertEquals(0, queue.requeueExpiredLeases());
+			threeId = queue.lease(1, Duration.ofMinutes(1)).get(0).sequenceId();
+			Assertions.assertTrue(queue.isEmpty());
+			Assertions.assertEquals(3, queue.inFlightCount());
+
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals(2, queue.requeueExpiredLeases());
+			Assertions.assertEquals(1, queue.inFlightCount());
+			Assertions.assertEquals("one", queue.peek());
+			Assertions.assertEquals(leased.get(0).sequenceId(),
+					queue.lease(1, Duration.ofMinutes(1)).get(0).sequenceId());
+		}
+
+		// the new element must not reuse the id of an outstanding lease
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			queue.lease(1, Duration.ofMinutes(1));
+			Assertions.assertEquals(3, queue.inFlightCount());
+			Assertions.assertTrue(queue.offerWithId("four") > threeId);
+			Assertions.assertEquals(1, queue.ack(threeId));
+		}
+	}
+
+	@Test
+	void testLeaseDeadlineIndex() throws InterruptedException {
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			queue.add("one");
+			queue.add("two");
+			queue.add("three");
+
+			List<XodusQueueEntry<String>> leased = queue.lease(3, Duration.ofMillis(50));
+			Assertions.assertEquals(1, queue.ack(leased.get(1).sequenceId()));
+
+			// in-flight store written without the index
+			queue.environment()
+				.executeInExclusiveTransaction(
+						txn -> queue.environment().removeStore(XodusQueue.DEFAULT_STORE_NAME + "#leasedeadlines", txn));
+		}
+
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals(2, queue.requeueExpiredLeases());
+			Assertions.assertEquals(0, queue.inFlightCount());
+			Assertions.assertEquals(Arrays.asList("one", "three"), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testHugeVisibilityTimeoutSaturates() {
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			queue.add("one");
+			queue.add("two");
+
+			long oneId = queue.lease(1, Duration.ofSeconds(Long.MAX_VALUE)).get(0).sequenceId();
+			long twoId = queue.lease(1, Duration.ofDays(365L * 100_000_000L)).get(0).sequenceId();
+			Assertions.assertEquals(0, queue.requeueExpiredLeases());
+			Assertions.assertEquals(2, queue.inFlightCount());
+			Assertions.assertEquals(2, queue.ack(oneId, twoId));
+		}
+	}
+
+	@Test
+	void testRetentionByCountAndBytes() {
+		XodusQueueOptions byCount = XodusQueueOptions.defaults()
+			.withRetentionMaxElements(3)
+			.withRetentionInterval(Duration.ZERO);
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, byCount)) {
+			Assertions.assertEquals(0L, queue.applyRetention());
+			queue.addAll(Arrays.asList(1, 2, 3, 4, 5));
+			Assertions.assertEquals(5, queue.size());
+			Assertions.assertEquals(2L, queue.applyRetention());
+			Assertions.assertEquals(Arrays.asList(3, 4, 5), new ArrayList<>(queue));
+			Assertions.assertEquals(3, queue.peek());
+		}
+
+		// an Integer entry takes 8 key bytes and 4 value bytes
+		XodusQueueOptions byBytes = XodusQueueOptions.defaults()
+			.withRetentionMaxBytes(25)
+			.withRetentionInterval(Duration.ZERO);
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, byBytes)) {
+			Assertions.assertEquals(1L, queue.applyRetention());
+			Assertions.assertEquals(Arrays.asList(4, 5), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testRetentionByAge() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults()
+			.withRetentionMaxAge(Duration.ofMillis(100))
+			.withRetentionInterval(Duration.ZERO);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			queue.add("old-1");
+			queue.add("old-2");
+			Assertions.assertEquals(0L, queue.applyRetention());
+
+			TimeUnit.MILLISECONDS.sleep(150);
+			queue.add("new");
+			Assertions.assertEquals(2L, queue.applyRetention());
+			Assertions.assertEquals(Arrays.asList("new"), new ArrayList<>(queue));
+			Assertions.assertEquals(0L, queue.applyRetention());
+		}
+	}
+
+	@Test
+	void testHugeRetentionMaxAge() {
+		XodusQueueOptions options = XodusQueueOptions.defaults()
+			.withRetentionMaxAge(Duration.ofSeconds(Long.MAX_VALUE))
+			.withRetentionInterval(Duration.ZERO);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			queue.add("one");
+			Assertions.assertEquals(0L, queue.applyRetention());
+			Assertions.assertEquals(1, queue.size());
+		}
+	}
+
+	@Test
+	void testRetentionByAgeAfterDrainAndRestart() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults()
+			.withRetentionMaxAge(Duration.ofMillis(100))
+			.withRetentionInterval(Duration.ZERO);
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, options)) {
+			for (int i = 0; i < 100; i++) {
+				queue.add(i);
+			}
+			Assertions.assertEquals(0L, queue.applyRetention());
+			Assertions.assertEquals(100, queue.drainTo(new ArrayList<>(), 100));
+		}
+
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, options)) {
+			TimeUnit.MILLISECONDS.sleep(150);
+			for (int i = 0; i < 5; i++) {
+				queue.add(i);
+			}
+			Assertions.assertEquals(0L, queue.applyRetention());
+			Assertions.assertEquals(5, queue.size());
+		}
+	}
+
+	@Test
+	void testBackgroundRetention() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults()
+			.withRetentionMaxElements(10)
+			.withRetentionInterval(Duration.ofMillis(20));
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, options)) {
+			for (int i = 0; i < 100; i++) {
+				queue.offer(i);
+			}
+			for (int i = 0; i < 100 && queue.size() > 10; i++) {
+				TimeUnit.MILLISECONDS.sleep(20);
+			}
+			Assertions.assertEquals(10, queue.size());
+			Assertions.assertEquals(90, queue.peek());
+		}
+	}
+
+	@Test
+	void testOfferIfAbsent() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withDeduplicationWindow(Duration.ofMillis(100));
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertTrue(queue.offerIfAbsent("msg-1", "one"));
+			Assertions.assertEquals("one", queue.peek());
+			Assertions.assertFalse(queue.offerIfAbsent("msg-1", "one again"));
+			Assertions.assertTrue(queue.offerIfAbsent("msg-2", "two"));
+			Assertions.assertEquals(Arrays.asList("one", "two"), new ArrayList<>(queue));
+
+			// the key is remembered even after the element left the queue
+			Assertions.assertEquals("one", queue.poll());
+			Assertions.assertFalse(queue.offerIfAbsent("msg-1", "one again"));
+
+			TimeUnit.MILLISECONDS.sleep(150);
+			Assertions.assertTrue(queue.offerIfAbsent("msg-1", "one later"));
+			Assertions.assertTrue(queue.offerIfAbsent("msg-2", "two later"));
+			Assertions.assertEquals(Arrays.asList("two", "one later", "two later"), new ArrayList<>(queue));
+		}
+
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			Assertions.assertFalse(queue.offerIfAbsent("msg-1", "after restart"));
+		}
+	}
+
+	@Test
+	void testHugeDeduplicationWindowSaturates() {
+		XodusQueueOptions options = XodusQueueOptions.defaults()
+			.withDeduplicationWindow(Duration.ofSeconds(Long.MAX_VALUE));
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertTrue(queue.offerIfAbsent("msg-1", "one"));
+			Assertions.assertFalse(queue.offerIfAbsent("msg-1", "one again"));
+		}
+
+		options = XodusQueueOptions.defaults().withDeduplicationWindow(Duration.ofDays(365L * 100_000_000L));
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertTrue(queue.offerIfAbsent("msg-2", "two"));
+			Assertions.assertFalse(queue.offerIfAbsent("msg-2", "two again"));
+			Assertions.assertEquals(Arrays.asList("one", "two"), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testOfferWithTtl() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withExpirySweepInterval(Duration.ZERO);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			queue.offer("short-1", Duration.ofMillis(50));
+			queue.offer("forever");
+			queue.offer("short-2", Duration.ofMillis(50));
+			queue.offer("long", Duration.ofHours(1));
+			Assertions.assertEquals(4, queue.size());
+			Assertions.assertEquals(0L, queue.sweepExpired());
+
+			TimeUnit.MILLISECONDS.sleep(100);
+			Assertions.assertEquals("forever", queue.poll());
+			Assertions.assertEquals(Arrays.asList("long"), new ArrayList<>(queue));
+			Assertions.assertEquals(0L, queue.sweepExpired());
+		}
+
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			// the removed ids stay reserved by the expiry index
+			long id = queue.offerWithId("after restart");
+			Assertions.assertTrue(id > 4);
+			queue.offer("expired", Duration.ZERO);
+			Assertions.assertEquals(1L, queue.sweepExpired());
+			Assertions.assertEquals(Arrays.asList("long", "after restart"), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testHugeTtlSaturates() {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withExpirySweepInterval(Duration.ZERO);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertTrue(queue.offer("max", Duration.ofSeconds(Long.MAX_VALUE)));
+			Assertions.assertTrue(queue.offer("distant", Duration.ofDays(365L * 100_000_000L)));
+			Assertions.assertEquals(0L, queue.sweepExpired());
+			Assertions.assertEquals("max", queue.poll());
+			Assertions.assertEquals("distant", queue.poll());
+		}
+	}
+
+	@Test
+	void testBackgroundExpirySweep() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withExpirySweepInterval(Duration.ofMillis(20));
+		try (XodusQueue<Integer> queue = new XodusQueue<>("./test", Integer.class, options)) {
+			for (int i = 0; i < 100; i++) {
+				queue.offer(i, Duration.ofMillis(i < 90 ? 10 : 60_000));
+			}
+			for (int i = 0; i < 100 && queue.size() > 10; i++) {
+				TimeUnit.MILLISECONDS.sleep(20);
+			}
+			Assertions.assertEquals(10, queue.size());
+			Assertions.assertEquals(90, queue.peek());
+		}
+	}
+
+	@Test
+	void testEnvelope() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withEnvelope(true);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertEquals(Duration.ZERO, queue.oldestElementAge());
+			queue.offer("one");
+			queue.offer("two");
+			queue.offer("three");
+			queue.offer("four");
+			TimeUnit.MILLISECONDS.sleep(50);
+
+			Assertions.assertTrue(queue.oldestElementAge().toMillis() >= 50);
+			Assertions.assertEquals("one", queue.peek());
+			Assertions.assertEquals(Arrays.asList("one", "two", "three", "four"), new ArrayList<>(queue));
+			Assertions.assertEquals("one", queue.poll());
+			List<String> drained = new ArrayList<>();
+			Assertions.assertEquals(1, queue.drainTo(drained, 1));
+			Assertions.assertEquals(Arrays.asList("two"), drained);
+			Assertions.assertEquals("three", queue.lease(1, Duration.ofMinutes(1)).get(0).element());
+
+			XodusQueueHistogram timeInQueue = queue.timeInQueue();
+			Assertions.assertEquals(3, timeInQueue.getCount());
+			Assertions.assertTrue(timeInQueue.getMaxMillis() >= 50);
+			Assertions.assertTrue(timeInQueue.getPercentileMillis(50) >= 32);
+			Assertions.assertTrue(timeInQueue.getMeanMillis() >= 50);
+		}
+
+		Assertions.assertThrows(IllegalStateException.class, () -> new XodusQueue<>("./test", String.class));
+
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			Assertions.assertEquals("four", queue.poll());
+			Assertions.assertEquals(1, queue.timeInQueue().getCount());
+		}
+	}
+
+	@Test
+	void testEnvelopeReplaceKeepsEnqueueTime() throws InterruptedException {
+		XodusQueueOptions options = XodusQueueOptions.defaults().withEnvelope(true);
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class, options)) {
+			long id = queue.offerWithId("one");
+			TimeUnit.MILLISECONDS.sleep(50);
+
+			Assertions.assertTrue(queue.replaceById(id, "replaced"));
+			Assertions.assertEquals("replaced", queue.peek());
+			Assertions.assertTrue(queue.oldestElementAge().toMillis() >= 50);
+			Assertions.assertEquals("replaced", queue.poll());
+			Assertions.assertTrue(queue.timeInQueue().getMaxMillis() >= 50);
+		}
+	}
+
+	@Test
+	void testEnvelopeRequiresOption() {
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			Assertions.assertThrows(IllegalStateException.class, queue::oldestElementAge);
+			Assertions.assertThrows(IllegalStateException.class, queue::timeInQueue);
+		}
+
+		// an empty queue can switch the format
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class,
+				XodusQueueOptions.defaults().withEnvelope(true))) {
+			queue.offer("one");
+			Assertions.assertEquals("one", queue.poll());
+		}
+		try (XodusQueue<String> queue = new XodusQueue<>("./test", String.class)) {
+			queue.offer("plain");
+			Assertions.assertEquals("plain", queue.peek());
+		}
+	}
+
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ch.rasc.xodusqueue.serializer.IntegerXodusQueueSerializer;
+
+class XodusRingQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("ringtest").toString();
+	}
+
+	@Test
+	void testKeepsMostRecentElements() {
+		try (XodusRingQueue<Integer> queue = new XodusRingQueue<>(dbDir(), Integer.class, 3)) {
+			for (int i = 1; i <= 5; i++) {
+				Assertions.assertTrue(queue.offer(i));
+			}
+			Assertions.assertEquals(3, queue.size());
+			Assertions.assertEquals(3, queue.peek());
+
+			queue.addAll(Arrays.asList(6, 7));
+			Assertions.assertEquals(Arrays.asList(5, 6, 7), new ArrayList<>(queue));
+			Assertions.assertEquals(5, queue.peek());
+
+			Assertions.assertTrue(queue.offerIfAbsent("k", 8));
+			Assertions.assertEquals(Arrays.asList(6, 7, 8), new ArrayList<>(queue));
+		}
+
+		// a smaller capacity takes effect on the next append
+		try (XodusRingQueue<Integer> queue = new XodusRingQueue<>(dbDir(), Integer.class, 2)) {
+			queue.offer(9);
+			Assertions.assertEquals(Arrays.asList(8, 9), new ArrayList<>(queue));
+		}
+	}
+
+	@Test
+	void testBatchEviction() {
+		XodusQueueOptions optimistic = XodusQueueOptions.defaults()
+			.withWriteMode(XodusQueueOptions.WriteMode.OPTIMISTIC);
+		try (XodusRingQueue<Integer> queue = new XodusRingQueue<>(dbDir(), new IntegerXodusQueueSerializer(), 10, 4,
+				optimistic)) {
+			for (int i = 1; i <= 10; i++) {
+				queue.offer(i);
+			}
+			Assertions.assertEquals(10, queue.size());
+			queue.offer(11);
+			Assertions.assertEquals(7, queue.size());
+			Assertions.assertEquals(5, queue.peek());
+			for (int i = 12; i <= 14; i++) {
+				queue.offer(i);
+			}
+			Assertions.assertEquals(10, queue.size());
+		}
+	}
+
+	@Test
+	void testInvalidArguments() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new XodusRingQueue<>(dbDir(), Integer.class, 0));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new XodusRingQueue<>(dbDir(),
+				new IntegerXodusQueueSerializer(), 5, 6, XodusQueueOptions.defaults()));
+	}
+
+}
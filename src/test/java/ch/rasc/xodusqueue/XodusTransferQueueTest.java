@@ -0,0 +1,136 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.xodusqueue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class XodusTransferQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private String dbDir() {
+		return this.tempDir.resolve("transfertest").toString();
+	}
+
+	private static <T> CompletableFuture<T> takeAsync(XodusTransferQueue<T> queue) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return queue.take();
+			}
+			catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	private static void awaitWaitingConsumer(XodusTransferQueue<?> queue) throws InterruptedException {
+		for (int i = 0; i < 500 && !queue.hasWaitingConsumer(); i++) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		Assertions.assertTrue(queue.hasWaitingConsumer());
+	}
+
+	@Test
+	void testHandOffSkipsStore() throws Exception {
+		try (XodusTransferQueue<String> queue = new XodusTransferQueue<>(dbDir(), String.class)) {
+			Assertions.assertFalse(queue.tryTransfer("nobody"));
+			Assertions.assertTrue(queue.isEmpty());
+
+			CompletableFuture<String> consumer = takeAsync(queue);
+			awaitWaitingConsumer(queue);
+			Assertions.assertTrue(queue.tryTransfer("direct"));
+			Assertions.assertEquals("direct", consumer.get(5, TimeUnit.SECONDS));
+
+			consumer = takeAsync(queue);
+			awaitWaitingConsumer(queue);
+			queue.put("put");
+			Assertions.assertEquals("put", consumer.get(5, TimeUnit.SECONDS));
+			Assertions.assertEquals(0, queue.size());
+		}
+	}
+
+	@Test
+	void testOfferPersistsWithoutConsumer() throws Exception {
+		try (XodusTransferQueue<String> queue = new XodusTransferQueue<>(dbDir(), String.class)) {
+			Assertions.assertTrue(queue.offer("stored"));
+			Assertions.assertEquals(1, queue.size());
+			Assertions.assertFalse(queue.tryTransfer("timeout", 20, TimeUnit.MILLISECONDS));
+			Assertions.assertEquals(1, queue.size());
+			Assertions.assertEquals("stored", queue.take());
+		}
+	}
+
+	@Test
+	void testTransferWaitsForStoredElement() throws Exception {
+		try (XodusTransferQueue<String> queue = new XodusTransferQueue<>(dbDir(), String.class, Long.MAX_VALUE,
+				Duration.ofMillis(10))) {
+			CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+				try {
+					queue.transfer("later");
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+			for (int i = 0; i < 500 && queue.isEmpty(); i++) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			Assertions.assertEquals(1, queue.size());
+			Assertions.assertFalse(producer.isDone());
+
+			Assertions.assertEquals("later", queue.poll());
+			producer.get(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void testInsertsDoNotWaitForHandOffWithoutIdleConsumer() throws Exception {
+		try (XodusTransferQueue<String> queue = new XodusTransferQueue<>(dbDir(), String.class, Long.MAX_VALUE,
+				Duration.ofMinutes(1))) {
+			CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+				try {
+					queue.transfer("first");
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			for (int i = 0; i < 500 && queue.isEmpty(); i++) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			Assertions.assertEquals(1, queue.size());
+
+			CompletableFuture<String> consumer = takeAsync(queue);
+			Assertions.assertEquals("first", consumer.get(5, TimeUnit.SECONDS));
+			producer.get(5, TimeUnit.SECONDS);
+
+			consumer = takeAsync(queue);
+			awaitWaitingConsumer(queue);
+			Assertions.assertTrue(CompletableFuture.supplyAsync(() -> queue.offer("second")).get(5, TimeUnit.SECONDS));
+			Assertions.assertEquals("second", consumer.get(5, TimeUnit.SECONDS));
+		}
+	}
+
+}